@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A catalog of the checksums of local files, keyed by (path, size, modification time), so
+ * that a file is only read to calculate a checksum once however many stages, reports and
+ * zips need it.  Tools.generateChecksum consults the catalog before reading a file and
+ * records what it calculates.
+ *
+ * Entries are kept in memory and persisted in a file alongside each local file (the file
+ * name plus ".checksums"), so they survive between the stages of a pipeline and are
+ * moved with the file when it is staged in to a FileTracker's directory.  Checksums of the
+ * files stored in a FileTracker, keyed by tracker file name, are persisted in the
+ * tracker's manifest; FileTracker records them here when it makes a file local.
+ *
+ * An entry is only used while the file's size and modification time are unchanged.
+ * @author wpalmer
+ *
+ */
+public class ChecksumCatalog {
+
+	/**
+	 * Suffix of the file that persists a local file's checksums
+	 */
+	private static final String SUFFIX = ".checksums";
+	/**
+	 * Number of entries kept in memory
+	 */
+	private static final int MEMORY_ENTRIES = 10000;
+
+	/**
+	 * Entries in memory, most recently used last
+	 */
+	@SuppressWarnings("serial")
+	private static final Map<String, List<String>> gEntries = Collections.synchronizedMap(
+			new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, List<String>> pEldest) {
+					return size()>MEMORY_ENTRIES;
+				}
+			});
+
+	private ChecksumCatalog() {}
+
+	/**
+	 * Record checksums of a local file.  Checksums of other types that are already
+	 * recorded for the file (at its current size and modification time) are kept.
+	 * @param pFile file the checksums are for
+	 * @param pChecksums checksums, each in the format MD5:XXXXXX
+	 */
+	public static void record(File pFile, List<String> pChecksums) {
+		String key = getKey(pFile);
+		List<String> checksums = new ArrayList<String>(pChecksums);
+		List<String> existing = getEntry(pFile, key);
+		if(null!=existing) {
+			for(String checksum:existing) {
+				if(null==find(checksums, checksum.substring(0, checksum.indexOf(':')))) checksums.add(checksum);
+			}
+		}
+		gEntries.put(key, checksums);
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(getRecordFile(pFile)));
+			out.write(pFile.length()+"\t"+pFile.lastModified());
+			out.newLine();
+			for(String checksum:checksums) {
+				out.write(checksum);
+				out.newLine();
+			}
+			out.close();
+		} catch (IOException e) {
+			//the checksums will be calculated again when needed after this JVM exits
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Record one checksum of a local file
+	 * @param pFile file the checksum is for
+	 * @param pType type of checksum (MD5/SHA1 etc)
+	 * @param pChecksum the checksum (without the type)
+	 */
+	public static void record(File pFile, String pType, String pChecksum) {
+		List<String> checksums = new ArrayList<String>();
+		checksums.add(pType.toUpperCase()+":"+pChecksum);
+		record(pFile, checksums);
+	}
+
+	/**
+	 * Get a recorded checksum of a local file
+	 * @param pType type of checksum (MD5/SHA1 etc)
+	 * @param pFile file to get the checksum of
+	 * @return the checksum (without the type), or null if there is no up to date record
+	 */
+	public static String get(String pType, File pFile) {
+		if(!pFile.exists()) return null;
+		List<String> checksums = getEntry(pFile, getKey(pFile));
+		if(null==checksums) return null;
+		return find(checksums, pType);
+	}
+
+	/**
+	 * Rename a local file (see Tools.moveFile), and the record of its checksums if it has one
+	 * @param pFrom file to rename
+	 * @param pTo new name
+	 * @return true if the file was renamed
+	 */
+	public static boolean rename(File pFrom, File pTo) {
+		List<String> checksums = getEntry(pFrom, getKey(pFrom));
+		if(!Tools.moveFile(pFrom, pTo)) return false;
+		gEntries.remove(getKey(pFrom));
+		getRecordFile(pFrom).delete();
+		if(null!=checksums) record(pTo, checksums);
+		return true;
+	}
+
+	/**
+	 * Record the checksums of a local file for a copy of it
+	 * @param pFrom file that has been copied
+	 * @param pTo the copy
+	 */
+	public static void copy(File pFrom, File pTo) {
+		List<String> checksums = getEntry(pFrom, getKey(pFrom));
+		if(null!=checksums) record(pTo, checksums);
+	}
+
+	/**
+	 * Get the entry for a file from memory, or from the file that persists it
+	 * @param pFile a local file
+	 * @param pKey key for the file's current size and modification time
+	 * @return checksums in the format MD5:XXXXXX, or null if there is no up to date entry
+	 */
+	private static List<String> getEntry(File pFile, String pKey) {
+		List<String> checksums = gEntries.get(pKey);
+		if(null!=checksums) return checksums;
+		File record = getRecordFile(pFile);
+		if(!record.exists()) return null;
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(record));
+			try {
+				String line = in.readLine();
+				if(null==line||!line.equals(pFile.length()+"\t"+pFile.lastModified())) return null;
+				checksums = new ArrayList<String>();
+				line = in.readLine();
+				while(null!=line) {
+					if(line.contains(":")) checksums.add(line);
+					line = in.readLine();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		gEntries.put(pKey, checksums);
+		return checksums;
+	}
+
+	/**
+	 * @param pChecksums checksums in the format MD5:XXXXXX
+	 * @param pType type of checksum
+	 * @return the checksum of the given type (without the type), or null
+	 */
+	private static String find(List<String> pChecksums, String pType) {
+		for(String checksum:pChecksums) {
+			if(checksum.toUpperCase().startsWith(pType.toUpperCase()+":")) {
+				return checksum.substring(pType.length()+1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param pFile a local file
+	 * @return key for the file at its current size and modification time
+	 */
+	private static String getKey(File pFile) {
+		return pFile.getAbsolutePath()+"\t"+pFile.length()+"\t"+pFile.lastModified();
+	}
+
+	/**
+	 * @param pFile a local file
+	 * @return the file that persists pFile's checksums
+	 */
+	private static File getRecordFile(File pFile) {
+		return new File(pFile.getAbsolutePath()+SUFFIX);
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates checksums of local files.  Each file is read once, through a FileChannel in
+ * large blocks, and every requested checksum (any MessageDigest algorithm, e.g. MD5 or
+ * SHA-256, and CRC32) is updated from the same block.
+ * @author wpalmer
+ *
+ */
+public class ChecksumEngine {
+
+	/**
+	 * Checksum type for a CRC32 (not a MessageDigest algorithm)
+	 */
+	public static final String CRC32 = "CRC32";
+
+	/**
+	 * Hex digits used by toHex
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Read buffer for each thread, reused for every file the thread checksums
+	 */
+	private static final ThreadLocal<ByteBuffer> gBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(Settings.CHECKSUM_BUFSIZE);
+		}
+	};
+
+	private ChecksumEngine() {}
+
+	/**
+	 * Calculate several checksums of a file in one pass
+	 * @param pFile file to checksum
+	 * @param pTypes checksum types (MessageDigest algorithms, or CRC32)
+	 * @return map of type to lower case hex checksum, in the order requested.  Types
+	 * that are not supported are left out.
+	 * @throws IOException file access error
+	 */
+	public static Map<String, String> checksum(File pFile, String... pTypes) throws IOException {
+
+		if(!pFile.exists()) throw new IOException("File not found: "+pFile);
+
+		String[] types = new String[pTypes.length];
+		MessageDigest[] digests = new MessageDigest[pTypes.length];
+		CRC32 crc = null;
+		int count = 0;
+		for(String type:pTypes) {
+			if(type.equalsIgnoreCase(CRC32)) {
+				if(null==crc) crc = new CRC32();
+				continue;
+			}
+			//a type requested twice (in any case) is only calculated once
+			if(indexOf(types, count, type)>=0) continue;
+			try {
+				digests[count] = MessageDigest.getInstance(type.toUpperCase());
+				types[count++] = type;
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+			}
+		}
+
+		ByteBuffer buffer = gBuffer.get();
+		byte[] array = buffer.array();
+		FileInputStream input = new FileInputStream(pFile);
+		FileChannel channel = input.getChannel();
+		try {
+			buffer.clear();
+			while(channel.read(buffer)>=0) {
+				int bytesRead = buffer.position();
+				for(int i=0;i<count;i++) {
+					digests[i].update(array, 0, bytesRead);
+				}
+				if(null!=crc) crc.update(array, 0, bytesRead);
+				buffer.clear();
+			}
+		} finally {
+			input.close();
+		}
+
+		String[] values = new String[count];
+		for(int i=0;i<count;i++) {
+			values[i] = toHex(digests[i].digest());
+		}
+		Map<String, String> checksums = new LinkedHashMap<String, String>();
+		for(String type:pTypes) {
+			if(checksums.containsKey(type)) continue;
+			if(type.equalsIgnoreCase(CRC32)) {
+				if(null!=crc) checksums.put(type, toHex(crc.getValue()));
+				continue;
+			}
+			int i = indexOf(types, count, type);
+			if(i>=0) checksums.put(type, values[i]);
+		}
+		return checksums;
+	}
+
+	/**
+	 * Find a checksum type, ignoring case
+	 * @param pTypes types to search
+	 * @param pCount number of types in use
+	 * @param pType type to find
+	 * @return index of the type, or -1 if it is not there
+	 */
+	private static int indexOf(String[] pTypes, int pCount, String pType) {
+		for(int i=0;i<pCount;i++) {
+			if(pTypes[i].equalsIgnoreCase(pType)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Convert bytes to lower case hex
+	 * @param pBytes bytes to convert
+	 * @return hex string
+	 */
+	public static String toHex(byte[] pBytes) {
+		char[] hex = new char[pBytes.length*2];
+		toHex(pBytes, hex, 0);
+		return new String(hex);
+	}
+
+	/**
+	 * Convert bytes to lower case hex in to an existing array, without allocating
+	 * @param pBytes bytes to convert
+	 * @param pOut array to write the hex digits to (needs pBytes.length*2 chars from pOffset)
+	 * @param pOffset index in pOut of the first hex digit
+	 */
+	public static void toHex(byte[] pBytes, char[] pOut, int pOffset) {
+		for(byte b:pBytes) {
+			pOut[pOffset++] = HEX[(b>>4)&0xf];
+			pOut[pOffset++] = HEX[b&0xf];
+		}
+	}
+
+	/**
+	 * @param pCrc CRC32 value
+	 * @return the value as 8 lower case hex digits
+	 */
+	private static String toHex(long pCrc) {
+		char[] hex = new char[8];
+		for(int i=7;i>=0;i--) {
+			hex[i] = HEX[(int)(pCrc&0xf)];
+			pCrc >>= 4;
+		}
+		return new String(hex);
+	}
+
+}
@@ -47,11 +47,15 @@ import eu.scape_project.tb.chutney.jobs.CommandLineJob;
 import eu.scape_project.tb.chutney.jobs.ChutneyJob;
 import eu.scape_project.tb.chutney.jobs.TavernaCommandLineJob;
 import eu.scape_project.tb.chutney.jobs.TavernaServerJob;
+import eu.scape_project.tb.chutney.jobs.TrackerGCJob;
 import eu.scape_project.tb.chutney.jobs.XMLCommandLineJob;
+import eu.scape_project.tb.chutney.jobs.XMLPipelineJob;
 import eu.scape_project.tb.chutney.jobs.XMLWorkflowReport;
 
 /**
 * This is the Map class that will be run on remote Hadoop nodes.
+* Note that map may be called concurrently from several threads in the same task 
+* (see ChutneyDriver) so each call must only use its own temp dir and ChutneyFS.
 * @author wpalmer
 *
 */
@@ -68,22 +72,89 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 	public static JobType gJobType;
 
 	/**
-	 * The file containing the XML code
+	 * The file containing the XML code (comma separated files for an XMLPipelineJob)
 	 */
 	public static String gXmlCode;
 
 	/**
-	 * The main map method - this is where the work happens
+	 * Whether an XMLPipelineJob should store the outputs of each stage in HDFS
+	 */
+	public static boolean gCheckpoint = false;
+
+	/**
+	 * HDFS directory this task attempt writes its output files to, to be moved to the 
+	 * output directory when the attempt is committed (null unless speculative execution is enabled)
+	 */
+	public static String gStagingDir = null;
+
+	/**
+	 * Key of this job in the DedupIndex, or null if inputs that have already been processed
+	 * are not skipped
+	 */
+	public static String gDedupKey = null;
+
+	/**
+	 * Time after which a TrackerGCJob deletes unused FileTrackers (ms)
+	 */
+	public static long gTrackerTtl = Settings.TRACKER_TTL;
+
+	/**
+	 * Configuration of the current task, used to get the file system (see ChutneyLocalRunner)
+	 */
+	private static Configuration gConf = new Configuration();
+
+	/**
+	 * The main map method.  The input line is either a line from the input list, which
+	 * is processed directly, or a queue token (see ChutneyDriver) in which case input 
+	 * lines are taken from the queue and processed until the queue is empty.
 	 * @param pArg0 Line number of the input file (unused)
 	 * @param pInputFile Name of the local temp input file
 	 * @param pCollector Collects information after the map is complete - just collects 
 	 * input name and output name at the moment
-	 * @param pArg3 (unused)
+	 * @param pReporter used to report progress while working through a queue
 	 * @throws IOException file access issue
 	 */
 	@Override
 	public void map(LongWritable pArg0, Text pInputFile,
-			OutputCollector<Text, Text> pCollector, Reporter pArg3)
+			OutputCollector<Text, Text> pCollector, Reporter pReporter)
+					throws IOException {
+
+		String inputLine = pInputFile.toString().trim();
+		if(!inputLine.startsWith(Settings.QUEUE_TOKEN)) {
+			processLine(pInputFile, pCollector);
+			return;
+		}
+
+		//keep taking lines from the queue until it is empty, so maps on fast nodes 
+		//process more lines than maps on slow nodes
+		String queue = inputLine.substring(Settings.QUEUE_TOKEN.length());
+		int count = 0;
+		JMSComms.QueueReader reader = new JMSComms.QueueReader(queue);
+		try {
+			String line = reader.receive();
+			while(line!=null) {
+				pReporter.setStatus("Processing queued line "+(++count)+": "+line);
+				//a line is only removed from the queue once it has been processed; if this 
+				//fails the task fails and the line is taken again by another attempt
+				processLine(new Text(line), pCollector);
+				reader.acknowledge();
+				pReporter.progress();
+				line = reader.receive();
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println("Queue "+queue+" empty after "+count+" lines");
+	}
+
+	/**
+	 * Process one line from the input list - this is where the work happens
+	 * @param pInputFile Name of the local temp input file
+	 * @param pCollector Collects information after the map is complete - just collects 
+	 * input name and output name at the moment
+	 * @throws IOException file access issue
+	 */
+	private void processLine(Text pInputFile, OutputCollector<Text, Text> pCollector)
 					throws IOException {
 
 		long copyTimeGet = 0;
@@ -107,8 +178,7 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 		if(inputLine.equals("")) return;
 
 		//initialise HDFS connection
-		Configuration conf = new Configuration();
-		FileSystem fs = FileSystem.get(conf);
+		FileSystem fs = FileSystem.get(gConf);
 		
 		String hdfsOutputDir = Settings.OUTPUT_DIR+gJobName+"/";
 
@@ -116,13 +186,13 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 
 		//determine fs to use
 		if(inputLine.contains(FedoraDataConnector.DC_URI)) {
-			chutneyFS = new FedoraFS(fs, hdfsOutputDir);
+			chutneyFS = (gStagingDir==null)?new FedoraFS(fs, hdfsOutputDir):new FedoraFS(fs, hdfsOutputDir, gStagingDir);
 		} else {
 			if(inputLine.contains(WebdavDataConnector.DC_URI)) {
-				chutneyFS = new WebdavFS();
+				chutneyFS = (gStagingDir==null)?new WebdavFS():new WebdavFS(fs, hdfsOutputDir, gStagingDir);
 			} else {
 				//assume hdfs
-				chutneyFS = new HDFSFS(fs, hdfsOutputDir);
+				chutneyFS = (gStagingDir==null)?new HDFSFS(fs, hdfsOutputDir):new HDFSFS(fs, hdfsOutputDir, gStagingDir);
 			}
 		}
 
@@ -130,6 +200,8 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 		String[] split = inputLine.split(",");
 		//hash in the output
 		String hash = "";
+		//the input list entry the line came from, if it came from a previous job
+		String originalInput = "";
 		//chomp the string and look for any hash code
 		List<String> inputFiles = new LinkedList<String>();
 		for(int i=0;i<split.length;i++) {
@@ -140,6 +212,11 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 				hash = split[i].substring("HASH:".length());
 				continue;
 			}
+			//find the original input, passed on so resume can recognise it (see CompletedIndex)
+			if(split[i].startsWith("INPUT:")) {
+				originalInput = split[i].substring("INPUT:".length());
+				continue;
+			}
 			//find whether previous step was successful
 			if(split[i].startsWith("SUCCESS:")) {
 				prevsuccess = split[i].substring("SUCCESS:".length());
@@ -148,12 +225,17 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 			//assume that this must be an input file if we reach here
 			inputFiles.add(split[i]);
 		}
+		if(originalInput.length()==0&&hash.length()==0&&inputFiles.size()>0) {
+			originalInput = inputFiles.get(0);
+		}
+		String input = (originalInput.length()>0)?"INPUT:"+originalInput+", ":"";
 
 		//copy the input files to a local directory
 		//this should be done above and
 		//the xml jobs will copy in the files as required
 		//but leave this here for now so it copies the files anyway
-		if(!(gJobType==JobType.XMLCommandLineJob||gJobType==JobType.XMLWorkflowReport)) {
+		if(!(gJobType==JobType.XMLCommandLineJob||gJobType==JobType.XMLWorkflowReport||gJobType==JobType.XMLPipelineJob||
+				gJobType==JobType.TrackerGCJob)) {
 			//localTempDir = Tools.newTempDir();
 			for(int i=0;i<inputFiles.size();i++) {
 				String shortFile = inputFiles.get(i);
@@ -207,38 +289,12 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 		switch(gJobType) {
 		case XMLCommandLineJob: {
 			//set up the filetracker - we rely on being passed a filename if there is no hash
-			if(hash.length()>0) {
-				fileTracker = new FileTracker(fs,hash);
-			} else {
-				//assume we are the first file to be used in the tracker
-				if(fs.exists(new Path(inputFiles.get(0)))) {
-					//we need to generate the hash code for the file here but
-					//the file is in hdfs
-					File file = Tools.copyInputToLocalTemp(localTempDir,fs,inputFiles.get(0));
-					hash = Tools.generateChecksumOnly(file.toString());
-					if(shortInputFileName.length()<1) throw new IOException("No input file defined");
-					fileTracker = new FileTracker(fs,shortInputFileName,hash,inputFiles.get(0));
-					//HACK: move the file to the fileTracker temp directory so we don't
-					//have to copy it again
-					file.renameTo(new File(fileTracker.getLocalTempDir()+file.getName()));
-
-				} else {
-					//DANGER - possible collision if code reaches here (identical
-					//filenames but different data)
-					if(shortInputFileName.length()<1) throw new IOException("No input file defined");
-				}
-			}
+			fileTracker = getFileTracker(fs, hash, inputFiles, shortInputFileName, localTempDir);
+			hash = fileTracker.getHash();
 
 			localTempDir = new File(fileTracker.getLocalTempDir());
 
-			File xml = new File(gXmlCode); 
-
-			//check to see if we need to recover file from hdfs
-			if(!xml.exists()) {
-				System.out.print("loading xml from HDFS: ");
-				xml = Tools.copyInputToLocalTemp(localTempDir, fs, gXmlCode);
-				System.out.println("done");
-			}
+			File xml = getXmlCode(fs, gXmlCode, localTempDir);
 
 			//if(fileTracker==null) System.out.println("NULL fileTracker");
 			//if(localTempDir==null) System.out.println("NULL localTempDir");
@@ -256,13 +312,27 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 						fileTracker.makeFileLocal(shortFile);
 					} else {
 						//throw new IOException("Required input file does not exist in tracker: "+shortFile);
-						pCollector.collect(new Text(""), new Text("SUCCESS:"+false+", HASH:"+hash+""));
+						collect(pCollector, new Text(""), new Text("SUCCESS:"+false+", HASH:"+hash+", "+input));
 						return;
 					}
 				}
 
 			break;
 		}
+		case XMLPipelineJob: {
+			//as for XMLCommandLineJob but all the stages run here, in the same temp dir
+			fileTracker = getFileTracker(fs, hash, inputFiles, shortInputFileName, localTempDir);
+			hash = fileTracker.getHash();
+
+			localTempDir = new File(fileTracker.getLocalTempDir());
+
+			String[] xmlCodes = gXmlCode.split(",");
+			for(int i=0;i<xmlCodes.length;i++) {
+				xmlCodes[i] = getXmlCode(fs, xmlCodes[i].trim(), localTempDir).getAbsolutePath();
+			}
+			job = new XMLPipelineJob(fileTracker, xmlCodes, gCheckpoint);
+			break;
+		}
 		case XMLWorkflowReport: {
 			//set up the filetracker properly
 			if(hash.length()>0) {
@@ -283,12 +353,17 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 						//this should never happen as we asked the fileTracker for 
 						//a list of files
 
-						pCollector.collect(new Text(""), new Text("SUCCESS:"+false+", HASH:"+hash+""));
+						collect(pCollector, new Text(""), new Text("SUCCESS:"+false+", HASH:"+hash+", "+input));
 						return;
 					}
 				}
 			break;
 		}
+		case TrackerGCJob: {
+			//the input line is a tracker shard
+			job = new TrackerGCJob(fs, inputFiles.get(0), localTempDir.getAbsolutePath(), gTrackerTtl);
+			break;
+		}
 		case TavernaCommandLine: {
 			job = new TavernaCommandLineJob(tavernaInput, Settings.TAVERNA_WORKFLOW, localTempDir);
 			break;
@@ -304,6 +379,45 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 		}
 		}
 
+		//if this content has already been processed by this job then use the earlier output
+		String contentHash = null;
+		if(null!=gDedupKey) {
+			if(null!=fileTracker) {
+				//the tracker hash differs from the content's for identical content under another name
+				contentHash = fileTracker.getContentHash();
+			} else if(hash.length()>0) {
+				contentHash = hash;
+			} else if(inputFiles.size()>0&&new File(inputFiles.get(0)).exists()) {
+				//read from the ChecksumCatalog if the copy calculated it, otherwise from the file
+				contentHash = Tools.generateChecksumOnly(inputFiles.get(0));
+			}
+		}
+		if(null!=contentHash) {
+			boolean hdfsOutputs = !(chutneyFS instanceof FedoraFS||chutneyFS instanceof WebdavFS);
+			String previous = DedupIndex.lookup(fs, gDedupKey, contentHash, hdfsOutputs);
+			if(null!=previous&&null!=fileTracker) {
+				//later stages and XMLWorkflowReport look for the outputs in this input's tracker
+				previous = importOutputs(fs, fileTracker, previous);
+			}
+			if(null!=previous) {
+				System.out.println("Content already processed, using output: "+previous);
+				job.cleanup();
+				boolean previousSuccess = true;
+				if(gJobType==JobType.XMLCommandLineJob) {
+					JMSComms.sendMessage(fileTracker.getHash(), "SUCCESS:true:"+((XMLCommandLineJob)job).getXMLName());
+					if(prevsuccess.length()>0&(new Boolean(prevsuccess)==false)) {
+						previousSuccess = false;
+					}
+				}
+				if(!hash.equals(""))
+					hash = "HASH:"+hash+",";
+				collect(pCollector, new Text(previous), new Text("SUCCESS:"+previousSuccess+", "+hash+input));
+				if(localTempDir.exists())
+					Tools.deleteDirectory(localTempDir);
+				return;
+			}
+		}
+
 		//set up job
 		job.setup();
 
@@ -313,6 +427,9 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 		boolean success = job.wasSuccessful(); 
 		//copy the local output file and log file to hdfs
 		String outputFiles = "";
+		//files for the FileTracker, stored together after the loop
+		List<String> trackerLocalFiles = new LinkedList<String>();
+		List<String> trackerFiles = new LinkedList<String>();
 		//iterate through all the output files
 		for(String s:job.getOutputFiles()) {
 			//copy the file to hdfs
@@ -321,8 +438,8 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 			if(sFile.exists()) {
 				//if this is an xml job do this
 				if(gJobType==JobType.XMLCommandLineJob) {
-					fileTracker.storeFile(s, sFile.getName());
-					outputFiles += fileTracker.getHDFSFilePath(sFile.getName())+", ";
+					trackerLocalFiles.add(s);
+					trackerFiles.add(sFile.getName());
 				} else {
 					String outputName = sFile.getName();
 					//correct the output name for the taverna workflows
@@ -347,17 +464,31 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 				System.out.println("Error, output does not exist: "+s);
 			}
 		}
+		if(trackerFiles.size()>0) {
+			//upload the xml job outputs at the same time
+			fileTracker.storeFiles(trackerLocalFiles, trackerFiles);
+			for(String name:trackerFiles) {
+				outputFiles += fileTracker.getHDFSFilePath(name)+", ";
+			}
+			//outputs marked as final in the xml are replicated fully
+			List<String> promoted = new LinkedList<String>();
+			for(String s:((XMLCommandLineJob)job).getPromotedFiles()) {
+				if(trackerFiles.contains(new File(s).getName())) promoted.add(new File(s).getName());
+			}
+			fileTracker.promoteFiles(promoted);
+		}
 
 		if(chutneyFS!=null) {
 			//store log for time spent in copy operations
-			String metricsFile = shortFN+".metrics";
+			//use the temp dir as other threads in this map may be writing their own metrics
+			File metricsFile = new File(localTempDir, (shortFN==null?shortInputFileName:shortFN)+".metrics");
 			PrintWriter out = new PrintWriter(new FileWriter(metricsFile));
 			out.println("Copy metrics for "+chutneyFS.getType());
 			out.println("Input line: "+inputLine);
 			out.println("Get: Files: "+inputCount+", Size: "+inputSize+", MS in copy operation: "+copyTimeGet);
 			out.println("Put: Files: "+outputCount+", Size: "+outputSize+", MS in copy operation: "+copyTimePut);
 			out.close();
-			chutneyFS.saveLogFile(new File(metricsFile));
+			chutneyFS.saveLogFile(metricsFile);
 
 			//copy the log file seperately - we might have no output files or the job may have
 			//gone badly - make sure to get at least a log
@@ -381,13 +512,18 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 		//Note this must be here for TavernaServerJob otherwise no new workflows could be processed
 		job.cleanup();
 
+		//later inputs with the same content can use this output
+		if(null!=contentHash&&success&&outputFiles.length()>0) {
+			DedupIndex.record(fs, gDedupKey, contentHash, outputFiles);
+		}
+
 		//doing it this way means that if we have no hash there is no hash output
 		if(!hash.equals(""))
 			hash = "HASH:"+hash+",";
 
 		//store information in a log file in HDFS
 		//TODO: don't put any output files here - just use the hash?
-		pCollector.collect(new Text(outputFiles), new Text("SUCCESS:"+success+", "+hash+""));
+		collect(pCollector, new Text(outputFiles), new Text("SUCCESS:"+success+", "+hash+input));
 
 		//delete the temp directory, if it still exists
 		if(localTempDir.exists())
@@ -396,6 +532,121 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 	}
 
 
+	/**
+	 * Copy the outputs of an earlier run on identical content into a FileTracker, so that
+	 * the files are found under this input's name.  Outputs that are not in a FileTracker
+	 * are left where they are.
+	 * @param pFs HDFS file system
+	 * @param pFileTracker FileTracker for this input
+	 * @param pOutputs comma separated outputs recorded in the DedupIndex
+	 * @return comma separated outputs in pFileTracker, or null if they could not be copied
+	 */
+	private static String importOutputs(FileSystem pFs, FileTracker pFileTracker, String pOutputs) {
+		String outputs = "";
+		try {
+			for(String output:pOutputs.split(",")) {
+				output = output.trim();
+				if(output.length()==0) continue;
+				Path path = new Path(output);
+				String trackerHash = FileTracker.getTrackerHash(pFs, path);
+				if(null==trackerHash||trackerHash.equalsIgnoreCase(pFileTracker.getHash())) {
+					outputs += output+", ";
+					continue;
+				}
+				String name = path.getName();
+				if(!pFileTracker.exists(name)) {
+					FileTracker source = new FileTracker(pFs, trackerHash);
+					File local = new File(source.getLocalTempDir()+name);
+					//only remove the local copy if it is made here
+					boolean copied = !local.exists();
+					source.makeFileLocal(name);
+					if(!local.exists()) return null;
+					List<String> locals = new LinkedList<String>();
+					List<String> names = new LinkedList<String>();
+					locals.add(local.getAbsolutePath());
+					names.add(name);
+					pFileTracker.storeFiles(locals, names);
+					if(source.isFinal(name)) pFileTracker.promoteFiles(names);
+					if(copied) local.delete();
+				}
+				outputs += pFileTracker.getHDFSFilePath(name)+", ";
+			}
+		} catch (IOException e) {
+			//process the input again
+			e.printStackTrace();
+			return null;
+		}
+		return outputs;
+	}
+
+	/**
+	 * Set up the FileTracker for an XML job.  If there is no hash then this is the first
+	 * job to use the input file so copy it locally, hash it and create a new tracker.
+	 * @param pFs HDFS file system
+	 * @param pHash hash from the input line (may be empty)
+	 * @param pInputFiles input files from the input line
+	 * @param pShortInputFileName short name of the first input file
+	 * @param pLocalTempDir local temp dir to use for the initial copy
+	 * @return FileTracker for the input
+	 * @throws IOException file access issue
+	 */
+	private static FileTracker getFileTracker(FileSystem pFs, String pHash, List<String> pInputFiles, 
+			String pShortInputFileName, File pLocalTempDir) throws IOException {
+		if(pHash.length()>0) {
+			return new FileTracker(pFs,pHash);
+		} 
+		//assume we are the first file to be used in the tracker
+		if(pShortInputFileName==null||pShortInputFileName.length()<1) throw new IOException("No input file defined");
+		if(!pFs.exists(new Path(pInputFiles.get(0)))) {
+			//DANGER - possible collision if code reaches here (identical
+			//filenames but different data)
+			throw new IOException("Input file not found: "+pInputFiles.get(0));
+		}
+		//we need to generate the hash code for the file here but
+		//the file is in hdfs - the checksum is calculated as it is copied
+		File file = Tools.copyInputToLocalTemp(pLocalTempDir,pFs,pInputFiles.get(0));
+		String hash = Tools.generateChecksumOnly(file.toString());
+		FileTracker fileTracker = new FileTracker(pFs,pShortInputFileName,hash,pInputFiles.get(0));
+		//HACK: move the file to the fileTracker temp directory so we don't
+		//have to copy it again (the checksum moves with it for the job's log)
+		ChecksumCatalog.rename(file, new File(fileTracker.getLocalTempDir()+file.getName()));
+		return fileTracker;
+	}
+
+	/**
+	 * Get a local copy of an XML job definition, copying it from HDFS if required
+	 * @param pFs HDFS file system
+	 * @param pXmlCode path to the xml code
+	 * @param pLocalTempDir local temp dir to copy the xml to
+	 * @return local xml file
+	 * @throws IOException file access issue
+	 */
+	private static File getXmlCode(FileSystem pFs, String pXmlCode, File pLocalTempDir) throws IOException {
+		File xml = new File(pXmlCode); 
+
+		//check to see if we need to recover file from hdfs
+		if(!xml.exists()) {
+			System.out.print("loading xml from HDFS: ");
+			xml = Tools.copyInputToLocalTemp(pLocalTempDir, pFs, pXmlCode);
+			System.out.println("done");
+		}
+		return xml;
+	}
+
+	/**
+	 * Collect output from the map - the collector is shared between threads when
+	 * more than one line is processed at once in a map
+	 * @param pCollector collector to write to
+	 * @param pKey output key
+	 * @param pValue output value
+	 * @throws IOException file access issue
+	 */
+	private static void collect(OutputCollector<Text, Text> pCollector, Text pKey, Text pValue) throws IOException {
+		synchronized(pCollector) {
+			pCollector.collect(pKey, pValue);
+		}
+	}
+
 	/**
 	 * Method run at the end of the map
 	 */
@@ -412,25 +663,57 @@ public class Chutney extends MapReduceBase implements Mapper<LongWritable, Text,
 	public void configure(JobConf pJob) {
 		super.configure(pJob);
 
+		gConf = pJob;
+
 		//get the job name from the config
 		gJobName = pJob.getJobName();
+
+		//with speculative execution each attempt writes to its own staging directory
+		gStagingDir = null;
+		if(pJob.getBoolean(Settings.SPECULATIVE_CONF_SETTING, false)) {
+			gStagingDir = ChutneyOutputCommitter.getStagingDir(pJob);
+		}
+		FileTracker.configure(pJob);
+		Tools.setLinkLocalInputs(pJob.getBoolean(Settings.LINK_LOCAL_INPUTS_CONF_SETTING, Settings.LINK_LOCAL_INPUTS));
+		RangedDownload.setThreads(pJob.getInt(Settings.DOWNLOAD_THREADS_CONF_SETTING, Settings.DOWNLOAD_THREADS));
 		//outputPath = job.get(Settings.OUTPUTPATH_CONF_SETTING);
 
-		//get the type of job we are running from the config
+		//get the type of job we are running from the config (set by ChutneyDriver.getJobType)
 		String jobType = pJob.get(Settings.JOBTYPE_CONF_SETTING);
-		//could iterate over the enum instead?
-		if(jobType.equals(JobType.CommandLineJob.toString())) {
-			gJobType = JobType.CommandLineJob;
-		} else if(jobType.equals(JobType.TavernaCommandLine.toString())) {
-			gJobType = JobType.TavernaCommandLine;
-		} else if(jobType.equals(JobType.TavernaServerJob.toString())) {
-			gJobType = JobType.TavernaServerJob;
-		} else if(jobType.equals(JobType.XMLWorkflowReport.toString())) {
-			gJobType = JobType.XMLWorkflowReport;
-		} else if(jobType.equals(JobType.XMLCommandLineJob.toString())) {
-			gJobType = JobType.XMLCommandLineJob;
+		if(null==jobType) {
+			throw new IllegalArgumentException("No job type set in "+Settings.JOBTYPE_CONF_SETTING);
+		}
+		//throws IllegalArgumentException for an unknown type rather than keep a previous job's type
+		gJobType = JobType.valueOf(jobType);
+		switch(gJobType) {
+		case XMLCommandLineJob:
 			gXmlCode = pJob.get(Settings.XMLCODE_CONF_SETTING);
-		} 
+			XMLCommandLineJob.setHedging(pJob.getBoolean(Settings.HEDGE_CONF_SETTING, false));
+			break;
+		case XMLPipelineJob:
+			gXmlCode = pJob.get(Settings.XMLCODE_CONF_SETTING);
+			gCheckpoint = pJob.getBoolean(Settings.CHECKPOINT_CONF_SETTING, false);
+			XMLCommandLineJob.setHedging(pJob.getBoolean(Settings.HEDGE_CONF_SETTING, false));
+			break;
+		case TrackerGCJob:
+			gTrackerTtl = pJob.getLong(Settings.GC_TTL_CONF_SETTING, Settings.TRACKER_TTL);
+			break;
+		default:
+			break;
+		}
+
+		//reports are specific to each input so are not deduplicated
+		gDedupKey = null;
+		if(pJob.getBoolean(Settings.DEDUP_CONF_SETTING, false)&&gJobType!=JobType.XMLWorkflowReport&&
+				gJobType!=JobType.TrackerGCJob) {
+			try {
+				gDedupKey = DedupIndex.getJobKey(gJobType, gXmlCode);
+			} catch (IOException e) {
+				//without the xml contents outputs of a different definition could be reused
+				System.out.println("Unable to read xml code, not deduplicating: "+gXmlCode);
+				e.printStackTrace();
+			}
+		}
 
 	}
 
@@ -20,6 +20,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -29,6 +32,8 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
@@ -36,15 +41,20 @@ import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.MultithreadedMapRunner;
 import org.apache.hadoop.mapred.lib.NLineInputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import eu.scape_project.tb.chutney.Settings.JobType;
+import eu.scape_project.tb.chutney.input.LocalityInputFormat;
+import eu.scape_project.tb.chutney.input.SizeBalancedInputFormat;
 import eu.scape_project.tb.chutney.jobs.CommandLineJob;
 import eu.scape_project.tb.chutney.jobs.TavernaCommandLineJob;
 import eu.scape_project.tb.chutney.jobs.TavernaServerJob;
+import eu.scape_project.tb.chutney.jobs.TrackerGCJob;
 import eu.scape_project.tb.chutney.jobs.XMLCommandLineJob;
+import eu.scape_project.tb.chutney.jobs.XMLPipelineJob;
 import eu.scape_project.tb.chutney.jobs.XMLWorkflowReport;
 
 /**
@@ -57,6 +67,34 @@ import eu.scape_project.tb.chutney.jobs.XMLWorkflowReport;
  */
 public class ChutneyDriver extends Configured implements Tool {
 
+	/**
+	 * Get the job type for a short job type given on the command line
+	 * @param pShortJobType short job type, e.g. XML
+	 * @return the job type (CommandLineJob if not recognised)
+	 */
+	static JobType getJobType(String pShortJobType) {
+		String value = pShortJobType.toUpperCase();
+		if(value.equals(TavernaCommandLineJob.getShortJobType())) {
+			return TavernaCommandLineJob.getJobType();
+		}
+		if(value.equals(TavernaServerJob.getShortJobType())) {
+			return TavernaServerJob.getJobType();
+		}
+		if(value.equals(XMLCommandLineJob.getShortJobType())) {
+			return XMLCommandLineJob.getJobType();
+		}
+		if(value.equals(XMLWorkflowReport.getShortJobType())) {
+			return XMLWorkflowReport.getJobType();
+		}
+		if(value.equals(XMLPipelineJob.getShortJobType())) {
+			return XMLPipelineJob.getJobType();
+		}
+		if(value.equals(TrackerGCJob.getShortJobType())) {
+			return TrackerGCJob.getJobType();
+		}
+		return CommandLineJob.getJobType();
+	}
+
 	/**
 	 * This method sets up and runs the job on Hadoop
 	 * @param args The passed through command line arguments
@@ -67,14 +105,38 @@ public class ChutneyDriver extends Configured implements Tool {
 		Options options = new Options();
 		options.addOption("n", "jobname", true, "name to assign to the hadoop job");
 		options.addOption("i", "inputlist", true, "text file containing list of input files (ensure no trailing carriage returns)");
-		options.addOption("t", "jobtype", true, "type of job; CLJ (command line job), TSJ (Taverna Server job), TCL (Taverna command line job), XML (XML defined command line job), XWR (XML workflow report)");
-		options.addOption("x", "xmlcode", true, "xml definition of job to run for XML jobs");
+		options.addOption("t", "jobtype", true, "type of job; CLJ (command line job), TSJ (Taverna Server job), TCL (Taverna command line job), XML (XML defined command line job), XWR (XML workflow report), XPL (XML pipeline of XML jobs and XML workflow report), TGC (delete unused FileTrackers; no inputlist needed)");
+		options.addOption("x", "xmlcode", true, "xml definition of job to run for XML jobs, or a comma separated list of them for XPL jobs");
+		options.addOption("k", "checkpoint", false, "for XPL jobs, store the outputs of each stage in HDFS so a failed pipeline can be restarted");
+		options.addOption("g", "hedge", false, "for XML and XPL jobs, start a second copy of a tool run that is taking longer than "+Settings.HEDGE_PERCENTILE+"% of its recent runs and keep whichever finishes first");
+		options.addOption("c", "container", false, "for XML and XPL jobs, store the files for each input in one container file in HDFS rather than as separate files");
+		options.addOption("l", "linespermap", true, "number of input lines to give to each map (default "+Settings.DEFAULT_LINES_PER_MAP+")");
+		options.addOption("p", "threads", true, "number of input lines each map processes concurrently (default "+Settings.DEFAULT_MAP_THREADS+")");
+		options.addOption("s", "sizesplit", false, "group input lines in to maps by total input size rather than by number of lines");
+		options.addOption("m", "metrics", true, "directory of .metrics files from a previous run, used to size Fedora/Webdav inputs for sizesplit");
+		options.addOption("d", "locality", false, "group input lines in to maps by the hosts holding the input files, so maps run next to their data");
+		options.addOption("e", "speculative", false, "enable speculative execution of slow maps; output files are staged per attempt and only the winning attempt's are kept");
+		options.addOption("q", "queue", true, "number of maps to run that take input lines from a shared queue until it is empty, instead of each map getting a fixed set of lines");
+		options.addOption("o", "localcache", false, "keep files fetched from and stored in FileTrackers in a cache on each node (up to "+Settings.LOCAL_CACHE_QUOTA/(1024*1024*1024)+"GB in "+Settings.LOCAL_CACHE_DIR+")");
+		options.addOption("j", "linkinputs", false, "hard link local input files in to the temporary directories instead of copying them; only use if no tool modifies its input files in place");
+		options.addOption("u", "dedup", false, "skip inputs whose content (MD5) has already been processed by this job type/XML code, reusing the earlier outputs");
+		options.addOption("r", "resume", false, "skip input lines already processed by a previous run of this job (same jobname)");
+		options.addOption("b", "replication", true, "for XML and XPL jobs, replication of the intermediate files stored in FileTrackers (default "+Settings.TRACKER_REPLICATION+"); outputs marked promote=\"true\" in the xml are fully replicated");
+		options.addOption("a", "ttl", true, "for TGC jobs, days after the last file was stored that a FileTracker is deleted (default "+(Settings.TRACKER_TTL/(24*60*60*1000))+")");
 		options.addOption("h", "help", false, "help text");
 
 		JobConf conf = new JobConf(ChutneyDriver.class);
 		
 		String input = null;
 		String xmlcode = null;
+		int linesPerMap = Settings.DEFAULT_LINES_PER_MAP;
+		int threads = Settings.DEFAULT_MAP_THREADS;
+		boolean sizeSplit = false;
+		boolean locality = false;
+		boolean resume = false;
+		boolean speculative = false;
+		int queueMaps = 0;
+		JobType jobType = null;
 
 		CommandLine com;
 		try {
@@ -90,36 +152,31 @@ public class ChutneyDriver extends Configured implements Tool {
 			} 
 			conf.setJobName(jobName);
 
-			JobType jobType = JobType.CommandLineJob;
+			jobType = JobType.CommandLineJob;
 			if(com.hasOption("jobtype")) {
-				String value = com.getOptionValue("jobtype").toUpperCase();
-				if(value.equals(CommandLineJob.getShortJobType())) {
-					jobType = CommandLineJob.getJobType();
-				} else
-					if(value.equals(TavernaCommandLineJob.getShortJobType())) {
-						jobType = TavernaCommandLineJob.getJobType();
-					} else
-						if(value.equals(TavernaServerJob.getShortJobType())) {
-							jobType = TavernaServerJob.getJobType();
-						} else 
-							if(value.equals(XMLCommandLineJob.getShortJobType())) {
-								jobType = XMLCommandLineJob.getJobType();
-							} else 
-								if(value.equals(XMLWorkflowReport.getShortJobType())) {
-									jobType = XMLWorkflowReport.getJobType();
-								} 
+				jobType = getJobType(com.getOptionValue("jobtype"));
 			}
 			System.out.println("JobType: "+jobType.toString());
 			conf.set(Settings.JOBTYPE_CONF_SETTING,jobType.toString());
 
 			if(com.hasOption("xmlcode")) {
 				//jobType == JobType.XMLCommandLineJob
-				xmlcode = com.getOptionValue("xmlcode");
-				//if it is a local file get the full path
-				if(new File(xmlcode).exists()) xmlcode = new File(xmlcode).getAbsolutePath();
+				xmlcode = "";
+				for(String xml:com.getOptionValue("xmlcode").split(",")) {
+					//if it is a local file get the full path
+					if(new File(xml).exists()) xml = new File(xml).getAbsolutePath();
+					if(xmlcode.length()>0) xmlcode += ",";
+					xmlcode += xml;
+				}
 				conf.set(Settings.XMLCODE_CONF_SETTING, xmlcode);
 			}
-			if((jobType == JobType.XMLCommandLineJob)&(xmlcode==null)) {
+			conf.setBoolean(Settings.CHECKPOINT_CONF_SETTING, com.hasOption("checkpoint"));
+			conf.setBoolean(Settings.HEDGE_CONF_SETTING, com.hasOption("hedge"));
+			conf.setBoolean(Settings.CONTAINER_CONF_SETTING, com.hasOption("container"));
+			conf.setBoolean(Settings.DEDUP_CONF_SETTING, com.hasOption("dedup"));
+			conf.setBoolean(Settings.LOCAL_CACHE_CONF_SETTING, com.hasOption("localcache"));
+			conf.setBoolean(Settings.LINK_LOCAL_INPUTS_CONF_SETTING, com.hasOption("linkinputs"));
+			if((jobType == JobType.XMLCommandLineJob|jobType == JobType.XMLPipelineJob)&(xmlcode==null)) {
 				//i.e. no code specified
 				System.out.println("No XML code specified on the command line");
 				return -1;
@@ -128,10 +185,67 @@ public class ChutneyDriver extends Configured implements Tool {
 			if(com.hasOption("inputlist")) {
 				input = com.getOptionValue("inputlist");
 			} 
-			if(input.equals(null)) {
+			//the input for a TGC job is generated below
+			if(null==input&jobType!=JobType.TrackerGCJob) {
 				System.out.println("no input given");
 				return -2;
 			}
+
+			try {
+				if(com.hasOption("linespermap")) {
+					linesPerMap = Integer.parseInt(com.getOptionValue("linespermap"));
+				}
+				if(com.hasOption("threads")) {
+					threads = Integer.parseInt(com.getOptionValue("threads"));
+				}
+			} catch(NumberFormatException e) {
+				throw(new ParseException("linespermap and threads must be integers"));
+			}
+			if(linesPerMap<1|threads<1) {
+				throw(new ParseException("linespermap and threads must be at least 1"));
+			}
+
+			sizeSplit = com.hasOption("sizesplit");
+			locality = com.hasOption("locality");
+			if(sizeSplit&locality) {
+				throw(new ParseException("only one of sizesplit and locality can be used"));
+			}
+			if(com.hasOption("metrics")) {
+				conf.set(Settings.METRICS_CONF_SETTING, com.getOptionValue("metrics"));
+			}
+			resume = com.hasOption("resume");
+			if(com.hasOption("queue")) {
+				try {
+					queueMaps = Integer.parseInt(com.getOptionValue("queue"));
+				} catch(NumberFormatException e) {
+					throw(new ParseException("queue must be an integer"));
+				}
+				if(queueMaps<1) {
+					throw(new ParseException("queue must be at least 1"));
+				}
+				if(sizeSplit|locality) {
+					throw(new ParseException("sizesplit and locality can't be used with queue"));
+				}
+			}
+			if(com.hasOption("replication")) {
+				try {
+					conf.setInt(Settings.TRACKER_REPLICATION_CONF_SETTING, Integer.parseInt(com.getOptionValue("replication")));
+				} catch(NumberFormatException e) {
+					throw(new ParseException("replication must be an integer"));
+				}
+			}
+			if(com.hasOption("ttl")) {
+				try {
+					conf.setLong(Settings.GC_TTL_CONF_SETTING, Long.parseLong(com.getOptionValue("ttl"))*24*60*60*1000);
+				} catch(NumberFormatException e) {
+					throw(new ParseException("ttl must be an integer"));
+				}
+			}
+			speculative = com.hasOption("speculative");
+			if(speculative&queueMaps>0) {
+				//lines taken from the queue by an attempt that loses would be lost
+				throw(new ParseException("speculative can't be used with queue"));
+			}
 			
 		} catch (ParseException e) {
 			HelpFormatter help = new HelpFormatter();
@@ -145,8 +259,87 @@ public class ChutneyDriver extends Configured implements Tool {
 		//QAJob testing for 9 tests on ANJO files can take ~4.5hrs+
 		conf.set("mapred.task.timeout", Integer.toString(360*60*1000));
 
+		Path outputPath = new Path(conf.getJobName());
+		if(null==input&jobType==JobType.TrackerGCJob) {
+			//one line for each top level tracker shard, plus one for unsharded trackers
+			Path shards = new Path(outputPath.toString()+"-gc.txt");
+			try {
+				FileSystem fs = FileSystem.get(conf);
+				PrintWriter out = new PrintWriter(fs.create(shards));
+				for(int i=0;i<256;i++) {
+					out.println(String.format("%02x", i));
+				}
+				out.println(TrackerGCJob.LEGACY_SHARD);
+				out.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+			input = shards.toString();
+		}
+
+		if(resume) {
+			//filter out the lines a previous run has already processed and write the 
+			//output of this run alongside the previous run's output
+			outputPath = new Path(conf.getJobName()+"/"+Settings.RESUME_DIR_PREFIX+System.currentTimeMillis());
+			Path remaining = new Path(outputPath.toString()+"-input.txt");
+			try {
+				FileSystem fs = FileSystem.get(conf);
+				String localXml = null;
+				if(xmlcode!=null&&jobType==JobType.XMLCommandLineJob) {
+					localXml = xmlcode;
+				}
+				CompletedIndex index = CompletedIndex.build(fs, conf.getJobName(), localXml);
+				if(index.filterInputList(fs, input, remaining)==0) {
+					System.out.println("Nothing left to process");
+					return 0;
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+			input = remaining.toString();
+		}
+
+		String queue = null;
+		if(queueMaps>0) {
+			//put the input lines on a queue and give each map tokens telling it to take
+			//lines from the queue - maps on fast nodes then take lines that would have been 
+			//left waiting behind a slow node.  Each map gets one token per thread.
+			queue = "chutney-queue-"+conf.getJobName()+"-"+System.currentTimeMillis();
+			Path tokens = new Path(outputPath.toString()+"-queue.txt");
+			try {
+				FileSystem fs = FileSystem.get(conf);
+				List<String> lines = new ArrayList<String>();
+				FileStatus[] inputs = fs.globStatus(new Path(input));
+				if(null!=inputs) {
+					for(FileStatus status:inputs) {
+						BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+						String line = in.readLine();
+						while(line!=null) {
+							if(line.trim().length()>0) lines.add(line);
+							line = in.readLine();
+						}
+						in.close();
+					}
+				}
+				JMSComms.sendMessages(queue, lines);
+				System.out.println("Queued "+lines.size()+" lines on "+queue+" for "+queueMaps+" maps");
+				PrintWriter out = new PrintWriter(fs.create(tokens));
+				for(int i=0;i<queueMaps*threads;i++) {
+					out.println(Settings.QUEUE_TOKEN+queue);
+				}
+				out.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+			input = tokens.toString();
+			linesPerMap = threads;
+		}
+
 		FileInputFormat.setInputPaths(conf, new Path(input));
-		FileOutputFormat.setOutputPath(conf, new Path(conf.getJobName()));
+		FileOutputFormat.setOutputPath(conf, outputPath);
 		
 		//set the mapper to this class' mapper
 		conf.setMapperClass(Chutney.class);
@@ -155,7 +348,31 @@ public class ChutneyDriver extends Configured implements Tool {
 		
 		//this input format should split the input by one line per map by default.
 		conf.setInputFormat(NLineInputFormat.class);
-		conf.setInt("mapred.line.input.format.linespermap", 1);
+		conf.setInt(Settings.LINESPERMAP_CONF_SETTING, linesPerMap);
+		if(sizeSplit) {
+			//same number of maps but each gets a similar amount of data
+			conf.setInputFormat(SizeBalancedInputFormat.class);
+		}
+		if(locality) {
+			//same number of maps but scheduled next to the input data
+			conf.setInputFormat(LocalityInputFormat.class);
+		}
+		
+		//process the lines in each map on a pool of threads - this saves a task 
+		//startup per file and keeps the cpus busy while the tools are waiting on i/o
+		if(threads>1) {
+			System.out.println("Lines per map: "+linesPerMap+", threads per map: "+threads);
+			conf.setMapRunnerClass(MultithreadedMapRunner.class);
+			conf.setInt("mapred.map.multithreadedrunner.threads", threads);
+		}
+		
+		//Chutney writes its output files directly so duplicate attempts would overwrite each
+		//other's files unless the files are committed by ChutneyOutputCommitter
+		conf.setMapSpeculativeExecution(speculative);
+		conf.setBoolean(Settings.SPECULATIVE_CONF_SETTING, speculative);
+		if(speculative) {
+			conf.setOutputCommitter(ChutneyOutputCommitter.class);
+		}
 		
 		//sets how the output is written cf. OutputFormat
 		//we can use nulloutputformat if we are writing our own output
@@ -175,6 +392,9 @@ public class ChutneyDriver extends Configured implements Tool {
 		} catch(IOException ioe) {
 			ioe.printStackTrace();
 			return -1;
+		} finally {
+			//the queue is only used by this run
+			if(null!=queue) JMSComms.deleteQueue(queue);
 		}
 		
 		return 0;
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import eu.scape_project.tb.chutney.Settings.JobType;
+
+/**
+ * This class runs a Chutney job on the local machine without Hadoop, for batches that 
+ * are too small to be worth submitting to the cluster.  The input list and files are on 
+ * the local file system and the output is written to the local file system using the 
+ * same layout as a Hadoop run (i.e. under Settings.OUTPUT_DIR).  Each input line is 
+ * given to Chutney.map on a pool of threads, one per core by default.
+ * @author wpalmer
+ *
+ */
+public class ChutneyLocalRunner {
+
+	/**
+	 * Collects the output of the maps in to a part file, as a Hadoop run would
+	 */
+	private static class PartFileCollector implements OutputCollector<Text, Text> {
+		/**
+		 * Part file to write to
+		 */
+		private PrintWriter gOut;
+		/**
+		 * Open the part file
+		 * @param pFile part file to write to
+		 * @throws IOException file access error
+		 */
+		public PartFileCollector(File pFile) throws IOException {
+			pFile.getParentFile().mkdirs();
+			gOut = new PrintWriter(new FileWriter(pFile));
+		}
+		@Override
+		public synchronized void collect(Text pKey, Text pValue) throws IOException {
+			gOut.println(pKey.toString()+"\t"+pValue.toString());
+			gOut.flush();
+		}
+		/**
+		 * Close the part file
+		 */
+		public synchronized void close() {
+			gOut.close();
+		}
+	}
+
+	/**
+	 * Run a job locally
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+
+		CommandLineParser parser = new PosixParser();
+		Options options = new Options();
+		options.addOption("n", "jobname", true, "name to assign to the job");
+		options.addOption("i", "inputlist", true, "local text file containing list of local input files");
+		options.addOption("t", "jobtype", true, "type of job; CLJ, XML, XWR or XPL (see ChutneyDriver)");
+		options.addOption("x", "xmlcode", true, "xml definition of job to run for XML jobs, or a comma separated list of them for XPL jobs");
+		options.addOption("k", "checkpoint", false, "for XPL jobs, store the outputs of each stage so a failed pipeline can be restarted");
+		options.addOption("g", "hedge", false, "for XML and XPL jobs, start a second copy of a tool run that is taking longer than usual");
+		options.addOption("p", "threads", true, "number of input lines to process concurrently (default number of cores)");
+		options.addOption("h", "help", false, "help text");
+
+		JobConf conf = new JobConf();
+		//use the local file system for everything, without checksum files
+		conf.set("fs.default.name", "file:///");
+		conf.set("fs.file.impl", "org.apache.hadoop.fs.RawLocalFileSystem");
+
+		String input = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		try {
+			CommandLine com = parser.parse(options, args);
+			if(com.hasOption("help")|!com.hasOption("inputlist")) {
+				throw(new ParseException(""));
+			}
+			input = com.getOptionValue("inputlist");
+
+			String jobName = Settings.JOB_NAME+"default";
+			if(com.hasOption("jobname")) {
+				jobName = Settings.JOB_NAME+com.getOptionValue("jobname");
+			}
+			conf.setJobName(jobName);
+
+			JobType jobType = JobType.CommandLineJob;
+			if(com.hasOption("jobtype")) {
+				jobType = ChutneyDriver.getJobType(com.getOptionValue("jobtype"));
+			}
+			conf.set(Settings.JOBTYPE_CONF_SETTING, jobType.toString());
+
+			if(com.hasOption("xmlcode")) {
+				String xmlcode = "";
+				for(String xml:com.getOptionValue("xmlcode").split(",")) {
+					if(xmlcode.length()>0) xmlcode += ",";
+					xmlcode += new File(xml).getAbsolutePath();
+				}
+				conf.set(Settings.XMLCODE_CONF_SETTING, xmlcode);
+			} else if(jobType==JobType.XMLCommandLineJob|jobType==JobType.XMLPipelineJob) {
+				throw(new ParseException("No XML code specified on the command line"));
+			}
+			conf.setBoolean(Settings.CHECKPOINT_CONF_SETTING, com.hasOption("checkpoint"));
+			conf.setBoolean(Settings.HEDGE_CONF_SETTING, com.hasOption("hedge"));
+
+			if(com.hasOption("threads")) {
+				try {
+					threads = Integer.parseInt(com.getOptionValue("threads"));
+				} catch(NumberFormatException e) {
+					throw(new ParseException("threads must be an integer"));
+				}
+				if(threads<1) {
+					throw(new ParseException("threads must be at least 1"));
+				}
+			}
+		} catch(ParseException e) {
+			HelpFormatter help = new HelpFormatter();
+			help.printHelp("java -cp TavernaHadoopWrapper.jar "+ChutneyLocalRunner.class.getName(), options);
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			success = run(conf, input, threads);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		System.out.println("Time taken: "+(System.currentTimeMillis()-start)+"ms");
+		//the tools may leave non-daemon threads (e.g. JMS) running
+		System.exit(success?0:1);
+
+	}
+
+	/**
+	 * Run each line of the input list through Chutney.map
+	 * @param pConf job configuration
+	 * @param pInputList local input list
+	 * @param pThreads number of lines to process concurrently
+	 * @return true if all the lines were processed without an exception
+	 * @throws IOException file access error
+	 */
+	public static boolean run(JobConf pConf, String pInputList, int pThreads) throws IOException {
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(pInputList));
+		String line = in.readLine();
+		while(line!=null) {
+			if(line.trim().length()>0) lines.add(line);
+			line = in.readLine();
+		}
+		in.close();
+		System.out.println(pConf.getJobName()+": "+lines.size()+" lines on "+pThreads+" threads");
+
+		final Chutney chutney = new Chutney();
+		chutney.configure(pConf);
+		final PartFileCollector collector = new PartFileCollector(new File(Settings.OUTPUT_DIR+pConf.getJobName()+"/part-00000"));
+
+		ExecutorService pool = Executors.newFixedThreadPool(pThreads);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for(int i=0;i<lines.size();i++) {
+			final LongWritable key = new LongWritable(i);
+			final Text value = new Text(lines.get(i));
+			results.add(pool.submit(new Runnable() {
+				public void run() {
+					try {
+						chutney.map(key, value, collector, Reporter.NULL);
+					} catch(IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+
+		boolean success = true;
+		for(int i=0;i<results.size();i++) {
+			try {
+				results.get(i).get();
+			} catch(InterruptedException e) {
+				e.printStackTrace();
+				success = false;
+			} catch(ExecutionException e) {
+				System.out.println("Failed: "+lines.get(i));
+				e.getCause().printStackTrace();
+				success = false;
+			}
+		}
+		chutney.close();
+		collector.close();
+		return success;
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputCommitter;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+
+/**
+ * This class commits the files Chutney writes to the job's output directory so that 
+ * speculative execution can be used.  Each task attempt writes its output files to its
+ * own staging directory and only the attempt that Hadoop commits has its files moved 
+ * (renamed) in to the output directory.  Output that can't be staged (Fedora and Webdav)
+ * is claimed with a marker file so only the first attempt writes it; the claims of an
+ * attempt that fails or is killed are released so a later attempt writes the output.
+ * The part files are committed as normal by FileOutputCommitter.
+ * @author wpalmer
+ *
+ */
+public class ChutneyOutputCommitter extends FileOutputCommitter {
+
+	/**
+	 * Directory (in the job's output directory) holding the staging directory of each attempt
+	 */
+	private static final String ATTEMPTS_DIR = "_attempts/";
+	/**
+	 * Directory (in the job's output directory) holding the claim marker files
+	 */
+	private static final String COMMITS_DIR = "_commits/";
+	/**
+	 * Directory (in COMMITS_DIR) listing the claims held by each attempt
+	 */
+	private static final String HELD_DIR = "_held/";
+
+	/**
+	 * Get the output directory of a job
+	 * @param pConf job configuration
+	 * @return output directory of the job
+	 */
+	private static String getOutputDir(JobConf pConf) {
+		return Settings.OUTPUT_DIR+pConf.getJobName()+"/";
+	}
+
+	/**
+	 * Get the staging directory for the current task attempt
+	 * @param pConf configuration of the task
+	 * @return staging directory of the attempt
+	 */
+	public static String getStagingDir(JobConf pConf) {
+		return getOutputDir(pConf)+ATTEMPTS_DIR+pConf.get("mapred.task.id")+"/";
+	}
+
+	/**
+	 * Get the directory listing the claims held by a task attempt
+	 * @param pOutputDir output directory of the job
+	 * @param pAttempt task attempt id
+	 * @return directory of the attempt's claims
+	 */
+	private static String getHeldDir(String pOutputDir, String pAttempt) {
+		return pOutputDir+COMMITS_DIR+HELD_DIR+pAttempt+"/";
+	}
+
+	/**
+	 * Claim the right to write an output that can't be staged.  Only the first attempt 
+	 * to claim a name succeeds, unless that attempt fails (see abortTask).
+	 * @param pFs HDFS file system
+	 * @param pOutputDir output directory of the job
+	 * @param pStagingDir staging directory of the attempt claiming the output (see getStagingDir)
+	 * @param pName name of the output
+	 * @return true if this attempt should write the output
+	 */
+	public static boolean claim(FileSystem pFs, String pOutputDir, String pStagingDir, String pName) {
+		String name = pName.replaceAll("[^A-Za-z0-9._-]", "_");
+		try {
+			if(!pFs.createNewFile(new Path(pOutputDir+COMMITS_DIR+name))) return false;
+			//record the claim against the attempt so it can be released if the attempt fails
+			pFs.createNewFile(new Path(getHeldDir(pOutputDir, new Path(pStagingDir).getName())+name));
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			//let the attempt write rather than lose the output
+			return true;
+		}
+	}
+
+	@Override
+	public boolean needsTaskCommit(TaskAttemptContext pContext) throws IOException {
+		JobConf conf = pContext.getJobConf();
+		return super.needsTaskCommit(pContext)||
+				FileSystem.get(conf).exists(new Path(getStagingDir(conf)));
+	}
+
+	@Override
+	public void commitTask(TaskAttemptContext pContext) throws IOException {
+		super.commitTask(pContext);
+		JobConf conf = pContext.getJobConf();
+		FileSystem fs = FileSystem.get(conf);
+		Path staging = new Path(getStagingDir(conf));
+		if(fs.exists(staging)) {
+			String stagingDir = fs.getFileStatus(staging).getPath().toString();
+			promote(fs, stagingDir, staging, getOutputDir(conf));
+			fs.delete(staging, true);
+		}
+		//this attempt's claims are kept
+		fs.delete(new Path(getHeldDir(getOutputDir(conf), conf.get("mapred.task.id"))), true);
+	}
+
+	/**
+	 * Move the files in a staging directory to the output directory
+	 * @param pFs HDFS file system
+	 * @param pStagingDir full path of the staging directory
+	 * @param pDir directory to move
+	 * @param pOutputDir output directory
+	 * @throws IOException file access error
+	 */
+	private void promote(FileSystem pFs, String pStagingDir, Path pDir, String pOutputDir) throws IOException {
+		for(FileStatus status:pFs.listStatus(pDir)) {
+			if(status.isDirectory()) {
+				promote(pFs, pStagingDir, status.getPath(), pOutputDir);
+				continue;
+			}
+			String name = status.getPath().toString().substring(pStagingDir.length());
+			Path target = new Path(pOutputDir+name);
+			pFs.mkdirs(target.getParent());
+			//an earlier attempt that failed after it was committed may have left a copy
+			if(pFs.exists(target)) pFs.delete(target, false);
+			if(!pFs.rename(status.getPath(), target)) {
+				throw new IOException("Unable to commit "+status.getPath()+" to "+target);
+			}
+		}
+	}
+
+	@Override
+	public void abortTask(TaskAttemptContext pContext) throws IOException {
+		super.abortTask(pContext);
+		JobConf conf = pContext.getJobConf();
+		FileSystem fs = FileSystem.get(conf);
+		fs.delete(new Path(getStagingDir(conf)), true);
+		//release this attempt's claims so the next attempt writes those outputs
+		Path held = new Path(getHeldDir(getOutputDir(conf), conf.get("mapred.task.id")));
+		if(fs.exists(held)) {
+			for(FileStatus claim:fs.listStatus(held)) {
+				fs.delete(new Path(getOutputDir(conf)+COMMITS_DIR+claim.getPath().getName()), false);
+			}
+			fs.delete(held, true);
+		}
+	}
+
+	@Override
+	public void commitJob(JobContext pContext) throws IOException {
+		super.commitJob(pContext);
+		cleanup(pContext.getJobConf());
+	}
+
+	@Override
+	public void abortJob(JobContext pContext, int pRunState) throws IOException {
+		super.abortJob(pContext, pRunState);
+		cleanup(pContext.getJobConf());
+	}
+
+	/**
+	 * Delete the staging directories and claim markers of a job
+	 * @param pConf job configuration
+	 * @throws IOException file access error
+	 */
+	private void cleanup(JobConf pConf) throws IOException {
+		FileSystem fs = FileSystem.get(pConf);
+		fs.delete(new Path(getOutputDir(pConf)+ATTEMPTS_DIR), true);
+		fs.delete(new Path(getOutputDir(pConf)+COMMITS_DIR), true);
+	}
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+
+import eu.scape_project.tb.chutney.input.InputLine;
+import eu.scape_project.tb.chutney.jobs.XMLCommandLineJob;
+
+/**
+ * An index of the inputs that a previous run of a job has already processed, used 
+ * to resume a job.  Inputs are identified by full path (for input lines that are
+ * files) or by hash (for input lines from a previous XML job).  Chutney passes the
+ * path of the input a line started from on to its output (as INPUT:), so lines from
+ * a previous job are recognised by path too.
+ * 
+ * Entries are stored as 64 bit hashes in a sorted array, with a Bloom filter in front
+ * so that most lookups for inputs that have not been processed don't search the array.
+ * This keeps the index to ~10 bytes per entry.
+ * @author wpalmer
+ *
+ */
+public class CompletedIndex {
+
+	/**
+	 * False positive rate for the Bloom filter
+	 */
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	/**
+	 * Pattern matching a FileTracker directory name from before trackers were sharded
+	 */
+	private static final Pattern TRACKER_DIR = Pattern.compile("(.+)-("+Settings.PATTERN_HASH+")\\.dir");
+	/**
+	 * Pattern matching a (sharded) FileTracker directory name
+	 */
+	private static final Pattern SHARDED_TRACKER_DIR = Pattern.compile("("+Settings.PATTERN_HASH+")");
+
+	/**
+	 * Sorted hashes of the completed inputs
+	 */
+	private long[] gEntries = new long[1024];
+	/**
+	 * Number of entries in gEntries
+	 */
+	private int gCount = 0;
+	/**
+	 * Bloom filter for the entries (set by build())
+	 */
+	private BloomFilter gBloom = null;
+
+	/**
+	 * Add a completed input to the index
+	 * @param pId id of the input (prefixed by type)
+	 */
+	private void add(String pId) {
+		if(gCount==gEntries.length) {
+			gEntries = Arrays.copyOf(gEntries, gEntries.length*2);
+		}
+		gEntries[gCount++] = hash(pId);
+	}
+
+	/**
+	 * Add an input that was recorded by path
+	 * @param pPath full path of the input, as given in the input list
+	 */
+	public void addPath(String pPath) {
+		add("P:"+pPath);
+	}
+
+	/**
+	 * Add an input that was recorded by hash
+	 * @param pHash hash of the input
+	 */
+	public void addHash(String pHash) {
+		add("H:"+pHash.toLowerCase());
+	}
+
+	/**
+	 * Sort the entries and build the Bloom filter - call after adding entries
+	 */
+	public void build() {
+		Arrays.sort(gEntries, 0, gCount);
+		//remove duplicates
+		int count = 0;
+		for(int i=0;i<gCount;i++) {
+			if(count==0||gEntries[count-1]!=gEntries[i]) {
+				gEntries[count++] = gEntries[i];
+			}
+		}
+		gCount = count;
+		gEntries = Arrays.copyOf(gEntries, gCount);
+
+		//standard sizing for the filter
+		int n = Math.max(1, gCount);
+		int vectorSize = (int)Math.ceil(-n*Math.log(FALSE_POSITIVE_RATE)/(Math.log(2)*Math.log(2)));
+		int nbHash = Math.max(1, (int)Math.round((double)vectorSize/n*Math.log(2)));
+		gBloom = new BloomFilter(vectorSize, nbHash, Hash.MURMUR_HASH);
+		for(long entry:gEntries) {
+			gBloom.add(new Key(toBytes(entry)));
+		}
+	}
+
+	/**
+	 * Get the number of entries in the index
+	 * @return number of entries
+	 */
+	public int size() {
+		return gCount;
+	}
+
+	/**
+	 * Is the id in the index
+	 * @param pId id of the input (prefixed by type)
+	 * @return true if the input is in the index
+	 */
+	private boolean contains(String pId) {
+		long hash = hash(pId);
+		if(!gBloom.membershipTest(new Key(toBytes(hash)))) return false;
+		return Arrays.binarySearch(gEntries, hash)>=0;
+	}
+
+	/**
+	 * Has the input on this input line already been processed
+	 * @param pLine line from the input list
+	 * @return true if the line has already been processed
+	 */
+	public boolean isDone(String pLine) {
+		String input = null;
+		for(String s:pLine.split("[,\t]")) {
+			s = s.trim();
+			//lines from a previous XML job are identified by hash
+			if(s.startsWith("HASH:")) {
+				if(contains("H:"+s.substring("HASH:".length()).toLowerCase())) return true;
+			}
+			if(s.startsWith("INPUT:")) {
+				input = s.substring("INPUT:".length());
+			}
+		}
+		if(null==input) {
+			List<String> files = InputLine.getInputFiles(pLine);
+			if(files.size()==0) return false;
+			input = files.get(0);
+		}
+		return contains("P:"+input);
+	}
+
+	/**
+	 * Hash an id to 64 bits (the first 8 bytes of its MD5)
+	 * @param pId id to hash
+	 * @return hash of the id
+	 */
+	private static long hash(String pId) {
+		try {
+			byte[] md5 = MessageDigest.getInstance("MD5").digest(pId.getBytes("UTF-8"));
+			long hash = 0;
+			for(int i=0;i<8;i++) {
+				hash = (hash<<8)|(md5[i]&0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Convert a hash to bytes for the Bloom filter
+	 * @param pHash hash
+	 * @return 8 bytes
+	 */
+	private static byte[] toBytes(long pHash) {
+		byte[] bytes = new byte[8];
+		for(int i=7;i>=0;i--) {
+			bytes[i] = (byte)pHash;
+			pHash >>>= 8;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Build an index of the inputs already processed by previous runs of a job, from
+	 * the part files of each run and, for XML jobs, the FileTrackers that already hold 
+	 * the job's output.  Only successful lines from the part files are counted; part
+	 * files written before inputs were recorded (INPUT:) only identify lines by hash.
+	 * @param pFs HDFS file system
+	 * @param pJobName name of the job
+	 * @param pXmlCode local xml file, for XML jobs (may be null)
+	 * @return an index of the completed inputs
+	 * @throws IOException file access error
+	 */
+	public static CompletedIndex build(FileSystem pFs, String pJobName, String pXmlCode) throws IOException {
+
+		CompletedIndex index = new CompletedIndex();
+
+		//part files from the first run and any resumed runs
+		FileStatus[] parts = pFs.globStatus(new Path(pJobName+"{,/"+Settings.RESUME_DIR_PREFIX+"*}/part-*"));
+		if(null!=parts) {
+			for(FileStatus part:parts) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(pFs.open(part.getPath())));
+				String line = in.readLine();
+				while(line!=null) {
+					if(line.contains("SUCCESS:true")) {
+						for(String s:line.split("[,\t]")) {
+							s = s.trim();
+							if(s.length()==0) continue;
+							if(s.startsWith("HASH:")) {
+								index.addHash(s.substring("HASH:".length()));
+								continue;
+							}
+							if(s.startsWith("INPUT:")) {
+								index.addPath(s.substring("INPUT:".length()));
+							}
+						}
+					}
+					line = in.readLine();
+				}
+				in.close();
+			}
+		}
+
+		//trackers that already have the (first) output of this xml job
+		if(null!=pXmlCode&&new File(pXmlCode).exists()) {
+			XMLCommandLineJob xml = new XMLCommandLineJob("*", "", pXmlCode);
+			if(xml.getOutputFiles().length>0) {
+				String output = new File(xml.getOutputFiles()[0]).getName();
+				//the key file name is the part of the output name matched by the wildcard
+				Pattern name = Pattern.compile(Pattern.quote(output).replace("*", "\\E(.+)\\Q"));
+				//read the manifests, as outputs appended to a container are not separate files
+				FileStatus[] trackers = pFs.globStatus(new Path(Settings.TRACKER_STORAGE_DIR+"{*.dir,*/*/*}"));
+				if(null!=trackers) {
+					for(FileStatus tracker:trackers) {
+						Path dir = tracker.getPath();
+						Matcher m = TRACKER_DIR.matcher(dir.getName());
+						if(!m.matches()) m = SHARDED_TRACKER_DIR.matcher(dir.getName());
+						if(!m.matches()) continue;
+						boolean found = false;
+						for(String file:FileTracker.listStoredFiles(pFs, dir)) {
+							//check the match wasn't for a similarly named file (e.g. x.jp2.feat and x.feat)
+							if(name.matcher(file).matches()) {
+								found = true;
+								break;
+							}
+						}
+						if(!found) continue;
+						//the tracker's hash is only shared by the same content (see FileTracker); its
+						//key file is the input it was created for
+						index.addHash(m.group(m.groupCount()));
+						String keyFile = FileTracker.readKeyFileLocation(pFs, dir);
+						if(null!=keyFile) index.addPath(keyFile);
+					}
+				}
+			}
+		}
+
+		index.build();
+		System.out.println("Resume index contains "+index.size()+" entries");
+		return index;
+	}
+
+	/**
+	 * Write the lines of an input list that have not been processed to a new input list
+	 * @param pFs HDFS file system
+	 * @param pInput input list (may be a glob)
+	 * @param pOutput new input list to write
+	 * @return number of lines still to process
+	 * @throws IOException file access error
+	 */
+	public int filterInputList(FileSystem pFs, String pInput, Path pOutput) throws IOException {
+		int remaining = 0;
+		int done = 0;
+		PrintWriter out = new PrintWriter(pFs.create(pOutput));
+		FileStatus[] inputs = pFs.globStatus(new Path(pInput));
+		if(null!=inputs) {
+			for(FileStatus input:inputs) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(pFs.open(input.getPath())));
+				String line = in.readLine();
+				while(line!=null) {
+					if(line.trim().length()>0) {
+						if(isDone(line)) {
+							done++;
+						} else {
+							out.println(line);
+							remaining++;
+						}
+					}
+					line = in.readLine();
+				}
+				in.close();
+			}
+		}
+		out.close();
+		System.out.println("Resume: skipping "+done+" processed lines, "+remaining+" to process");
+		return remaining;
+	}
+
+}
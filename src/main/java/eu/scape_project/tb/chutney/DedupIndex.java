@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import eu.scape_project.tb.chutney.Settings.JobType;
+
+/**
+ * A corpus wide index of the content (by MD5 hash of the input file) that has been
+ * processed successfully, so that byte-identical inputs under different names are only
+ * processed once by each job definition.
+ *
+ * Each entry is a small file in HDFS, Settings.DEDUP_DIR/jobkey/ab/cd/hash, containing
+ * the output files of the run that processed the content.  The job key is the job type
+ * and, for XML jobs, the names and an MD5 of the contents of the XML definitions, so
+ * changing a definition starts a new index.  An entry whose outputs have since been
+ * deleted (e.g. by TrackerGCJob) is removed when it is looked up.
+ * @author wpalmer
+ *
+ */
+public class DedupIndex {
+
+	private DedupIndex() {}
+
+	/**
+	 * Get the key used to separate the entries of different jobs
+	 * @param pJobType type of job
+	 * @param pXmlCode local xml code for XML jobs (comma separated for XPL jobs), otherwise null
+	 * @return key for the job
+	 * @throws IOException if the xml code could not be read
+	 */
+	public static String getJobKey(JobType pJobType, String pXmlCode) throws IOException {
+		String key = pJobType.toString();
+		if(null!=pXmlCode) {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			for(String xml:pXmlCode.split(",")) {
+				xml = xml.trim();
+				key += "-"+xml.substring(xml.lastIndexOf("/")+1);
+				md.update((Tools.generateChecksumOnly(xml)+",").getBytes("UTF-8"));
+			}
+			key += "-"+ChecksumEngine.toHex(md.digest());
+		}
+		return key.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * Look up content in the index
+	 * @param pFs HDFS file system
+	 * @param pJobKey key for the job (see getJobKey)
+	 * @param pHash MD5 hash of the input
+	 * @param pHdfsOutputs true if the job's output files are in HDFS, false if they are 
+	 * in a repository (only the outputs stored in FileTrackers are checked)
+	 * @return the output files recorded for the content, or null if it has not been processed
+	 * or its outputs no longer exist
+	 */
+	public static String lookup(FileSystem pFs, String pJobKey, String pHash, boolean pHdfsOutputs) {
+		Path entry = getEntry(pJobKey, pHash);
+		try {
+			if(!pFs.exists(entry)) return null;
+			BufferedReader in = new BufferedReader(new InputStreamReader(pFs.open(entry)));
+			String outputs = in.readLine();
+			in.close();
+			if(null==outputs) return null;
+			for(String output:outputs.split(",")) {
+				output = output.trim();
+				if(output.length()==0) continue;
+				//FileTracker outputs are full HDFS paths
+				if(!pHdfsOutputs&&!output.toLowerCase().startsWith("hdfs:")) continue;
+				if(!FileTracker.isStored(pFs, new Path(output))) {
+					System.out.println("Output no longer exists, removing index entry: "+output);
+					pFs.delete(entry, false);
+					return null;
+				}
+			}
+			return outputs;
+		} catch (IOException e) {
+			//process the input again
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Record that content has been processed successfully.  If another map has already
+	 * recorded the content its entry is kept.
+	 * @param pFs HDFS file system
+	 * @param pJobKey key for the job (see getJobKey)
+	 * @param pHash MD5 hash of the input
+	 * @param pOutputs output files for the content
+	 */
+	public static void record(FileSystem pFs, String pJobKey, String pHash, String pOutputs) {
+		Path entry = getEntry(pJobKey, pHash);
+		//write under a temporary name so readers never see a partial entry
+		Path tmp = new Path(entry.getParent(), "_"+pHash+"."+System.nanoTime());
+		try {
+			if(pFs.exists(entry)) return;
+			FSDataOutputStream out = pFs.create(tmp, false);
+			out.write((pOutputs+"\n").getBytes("UTF-8"));
+			out.close();
+			if(!pFs.rename(tmp, entry)) {
+				//another map recorded it first
+				pFs.delete(tmp, false);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param pJobKey key for the job
+	 * @param pHash MD5 hash of the input
+	 * @return location of the index entry for the content
+	 */
+	private static Path getEntry(String pJobKey, String pHash) {
+		return new Path(Settings.DEDUP_DIR+pJobKey+"/"+pHash.substring(0, 2)+"/"+pHash.substring(2, 4)+"/"+pHash);
+	}
+
+}
@@ -18,13 +18,30 @@ package eu.scape_project.tb.chutney;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,6 +50,7 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
 
 /**
  * This class stores, tracks and provides access to files in HDFS and locally.
@@ -50,7 +68,50 @@ public class FileTracker {
 	 * Name of file which contains HDFS path to original file (key file)
 	 * -> move this to WrapperSettings?
 	 */
-	private final String KEYFILEFILE = "keyfile.txt";
+	private static final String KEYFILEFILE = "keyfile.txt";
+
+	/**
+	 * Name of file which contains the name of the key file, so a tracker can be 
+	 * found from its hash alone
+	 */
+	private static final String KEYNAMEFILE = "keyname.txt";
+
+	/**
+	 * Name of the append-only file listing the files stored in a tracker, one per line:
+	 * name, size, checksum, time stored, container offset ("-" if not in the container), tier
+	 * (tab separated).  Later lines override earlier ones.
+	 */
+	private static final String MANIFESTFILE = "manifest.txt";
+
+	/**
+	 * Manifest tier of files written by a stage for use by later stages, which are stored
+	 * with low replication (see configure)
+	 */
+	public static final String TIER_INTERMEDIATE = "intermediate";
+	/**
+	 * Manifest tier of files promoted to final output (see promoteFiles)
+	 */
+	public static final String TIER_FINAL = "final";
+
+	/**
+	 * Number of times to try to append to a manifest (it can only have one writer at a time)
+	 */
+	private static final int MANIFEST_RETRIES = 10;
+
+	/**
+	 * Number of times to copy a file from HDFS if the copy does not match the manifest
+	 */
+	private static final int COPY_ATTEMPTS = 2;
+
+	/**
+	 * Locks for appending to a tracker's manifest and container from this JVM.  A tracker 
+	 * uses the lock chosen by its directory, so writers to different trackers rarely wait
+	 * for each other.
+	 */
+	private static final Object[] MANIFEST_LOCKS = new Object[64];
+	static {
+		for(int i=0;i<MANIFEST_LOCKS.length;i++) MANIFEST_LOCKS[i] = new Object();
+	}
 	
 	/**
 	 * Directory in HDFS where files will be stored
@@ -70,21 +131,99 @@ public class FileTracker {
 	 * Hash code of the keyfile
 	 */
 	private String gHashCode = "";
+	/**
+	 * MD5 of the key file's content.  This is the same as gHashCode unless the tracker is
+	 * for identical content under another name (see openTracker)
+	 */
+	private String gContentHash = "";
 	/**
 	 * List of files relating to the current keyfile that are in HDFS
 	 */
 	private List<String> gHdfsFiles = null;
+	/**
+	 * Full path to the key file, once known (see getKeyFileLocation)
+	 */
+	private String gKeyFileLocation = null;
+	/**
+	 * Manifest entries of the files in this tracker, keyed on name, or null if the 
+	 * tracker has no manifest (in which case HDFS is asked about each file)
+	 */
+	private Map<String, String[]> gManifest = null;
+	/**
+	 * Offset and length of each file held in the tracker's container file, keyed on name
+	 */
+	private Map<String, long[]> gContainerIndex = new ConcurrentHashMap<String, long[]>();
 	/**
 	 * HDFS FileSystem reference
 	 */
 	private FileSystem gFileSystem;
 
+	/**
+	 * Directory (in each tracker directory) that files are written to before being renamed
+	 */
+	private static final String TMP_STORE_DIR = "_tmp";
+	/**
+	 * Id of the current task attempt if it may run alongside a speculative attempt, 
+	 * otherwise null (see configure)
+	 */
+	private static String gAttemptId = null;
+
+	/**
+	 * Name of the file that tracker files are appended to in container mode.  Each
+	 * record is a header line (name, length) followed by the file's bytes.
+	 */
+	private static final String CONTAINERFILE = "container.dat";
+	/**
+	 * Whether files are stored in one container file per tracker rather than as 
+	 * separate HDFS files (see configure)
+	 */
+	private static boolean gUseContainer = false;
+	/**
+	 * Replication of intermediate files (see configure)
+	 */
+	private static short gReplication = Settings.TRACKER_REPLICATION;
+	/**
+	 * Block size of intermediate files (see configure)
+	 */
+	private static long gBlockSize = Settings.TRACKER_BLOCK_SIZE;
+
+	/**
+	 * Threads used to upload files to HDFS, shared by all the trackers in this JVM (see 
+	 * storeFiles)
+	 */
+	private static final ExecutorService gUploadPool = Executors.newFixedThreadPool(Settings.UPLOAD_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable pRunnable) {
+			Thread thread = new Thread(pRunnable, "tracker-upload");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	/**
 	 * If this is set, do nothing.  This allows use of the tracker class without it
 	 * being substantively created, by protecting access to methods. 
 	 */
 	private boolean gDoNothing = false;
 	
+	/**
+	 * Configure FileTrackers for the current task.  If speculative execution is enabled 
+	 * two attempts may store the same file at the same time, so files are written to a
+	 * temporary name and renamed in to place, meaning a tracker never holds a partly 
+	 * written file.  In container mode files are appended to one file per tracker, to 
+	 * reduce the number of files the NameNode has to hold.
+	 * @param pConf configuration of the current task
+	 */
+	public static void configure(JobConf pConf) {
+		gAttemptId = null;
+		if(pConf.getBoolean(Settings.SPECULATIVE_CONF_SETTING, false)) {
+			gAttemptId = pConf.get("mapred.task.id");
+		}
+		gUseContainer = pConf.getBoolean(Settings.CONTAINER_CONF_SETTING, false);
+		gReplication = (short)pConf.getInt(Settings.TRACKER_REPLICATION_CONF_SETTING, Settings.TRACKER_REPLICATION);
+		gBlockSize = pConf.getLong(Settings.TRACKER_BLOCKSIZE_CONF_SETTING, Settings.TRACKER_BLOCK_SIZE);
+		LocalCache.setEnabled(pConf.getBoolean(Settings.LOCAL_CACHE_CONF_SETTING, Settings.LOCAL_CACHE_ENABLED));
+	}
+
 	/**
 	 * Do nothing in this instance.  Need this to initialize a class so Eclipse stops 
 	 * complaining about it not being initialised, despite access being surrounded by checks.
@@ -101,10 +240,12 @@ public class FileTracker {
 	 * @param pKeyFile name of the keyfile for the FileTracker
 	 * @param pHash hash of the keyfile
 	 * @param pKeyFileLoc the full HDFS path to the key file 
+	 * @throws IOException if the tracker can't be opened
 	 */
-	public FileTracker(FileSystem pFileSystem, String pKeyFile, String pHash, String pKeyFileLoc) {
+	public FileTracker(FileSystem pFileSystem, String pKeyFile, String pHash, String pKeyFileLoc) throws IOException {
 
 		gHashCode = pHash;
+		gContentHash = pHash.toLowerCase();
 		gFileSystem = pFileSystem;
 		
 		StringTokenizer tok = new StringTokenizer(pKeyFile, ".");
@@ -117,23 +258,20 @@ public class FileTracker {
 		} else {
 			gKeyFile = tok.nextToken() + "." + tok.nextToken();
 		}
-		//this goes here as keyfile must be set
-		gLocalTempDir = makeLocalTempDir();
-
-		gHdfsStorageDir += gKeyFile + "-" + pHash + ".dir/";
+		String legacyDir = gHdfsStorageDir + gKeyFile + "-" + pHash + ".dir/";
 		//make the directories if they don't exist
-		try {
-			if(!gFileSystem.exists(new Path(gHdfsStorageDir)))
-				gFileSystem.mkdirs(new Path(gHdfsStorageDir));
-		} catch (IOException e2) {
-			e2.printStackTrace();
+		boolean created = false;
+		if(gFileSystem.exists(new Path(legacyDir))) {
+			//use the tracker created before trackers were sharded
+			gHdfsStorageDir = legacyDir;
+		} else {
+			created = openTracker(pHash);
 		}
+		//this goes here as keyfile and hash must be set
+		gLocalTempDir = makeLocalTempDir();
+
 		//set this to the full hdfs path name
-		try {
-			gHdfsStorageDir = gFileSystem.getFileStatus(new Path(gHdfsStorageDir)).getPath().toString()+"/";
-		} catch (IOException e1) {
-			//this should not fail
-		} 
+		gHdfsStorageDir = gFileSystem.makeQualified(new Path(gHdfsStorageDir)).toString()+"/";
 		
 		if(gKeyFile.equals(pKeyFile)) {
 			//as the keyfile is being passed as input to this tracker
@@ -146,6 +284,7 @@ public class FileTracker {
 				//do it this way as writing as UTF creates unicode<->ascii issues
 				output.write(pKeyFileLoc.getBytes());
 				output.close();
+				gKeyFileLocation = pKeyFileLoc;
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -153,13 +292,154 @@ public class FileTracker {
 		}
 
 		gHdfsFiles = new LinkedList<String>();
-		//add the existing files to the list
+		if(created) {
+			//a new tracker holds no files
+			gManifest = new ConcurrentHashMap<String, String[]>();
+		} else {
+			loadFileList();
+		}
+
+	}
+
+	/**
+	 * Open the sharded tracker for the key file, creating it if it doesn't exist.  A 
+	 * tracker belongs to one key file (named in its KEYNAMEFILE).  If the tracker for the 
+	 * content's hash belongs to another key file, i.e. identical content under a different
+	 * name, this key file gets its own tracker with a hash derived from both.  The content's
+	 * hash is recorded on the second line of KEYNAMEFILE.  Sets gHashCode and gHdfsStorageDir.
+	 * @param pHash hash of the key file
+	 * @return true if the tracker was created
+	 * @throws IOException file access error
+	 */
+	private boolean openTracker(String pHash) throws IOException {
+		String hash = pHash;
+		for(int i=0;i<2;i++) {
+			Path dir = new Path(getStorageDir(hash));
+			Path keyName = new Path(dir, KEYNAMEFILE);
+			boolean created = false;
+			if(!gFileSystem.exists(keyName)) {
+				//write the key name under a temporary name and rename it so another map 
+				//creating the same tracker never reads a partly written key name
+				Path tmp = new Path(dir, TMP_STORE_DIR+"/"+KEYNAMEFILE+"."+System.nanoTime());
+				gFileSystem.mkdirs(tmp.getParent());
+				FSDataOutputStream output = gFileSystem.create(tmp, false);
+				output.write((gKeyFile+"\n"+pHash.toLowerCase()+"\n").getBytes());
+				output.close();
+				created = gFileSystem.rename(tmp, keyName);
+				if(!created) gFileSystem.delete(tmp, false);
+			}
+			if(created||gKeyFile.equals(readKeyName(dir))) {
+				gHashCode = hash;
+				gHdfsStorageDir = dir.toString()+"/";
+				return created;
+			}
+			System.out.println("Tracker "+hash+" belongs to another key file, using a separate tracker for "+gKeyFile);
+			hash = ChecksumEngine.toHex(md5((pHash.toLowerCase()+"/"+gKeyFile).getBytes("UTF-8")));
+		}
+		throw new IOException("Unable to open a tracker for "+gKeyFile+" ("+pHash+")");
+	}
+
+	/**
+	 * @param pTrackerDir tracker directory
+	 * @return the name of the tracker's key file, or null if it can't be read
+	 */
+	private String readKeyName(Path pTrackerDir) {
 		try {
-			generateFileList(new Path(gHdfsStorageDir));
+			FSDataInputStream input = gFileSystem.open(new Path(pTrackerDir, KEYNAMEFILE));
+			BufferedReader red = new BufferedReader(new InputStreamReader(input));
+			String keyName = red.readLine();
+			input.close();
+			return null==keyName?null:keyName.trim();
 		} catch (IOException e) {
-			
+			return null;
+		}
+	}
+
+	/**
+	 * @param pData data to hash
+	 * @return MD5 of the data
+	 */
+	private static byte[] md5(byte[] pData) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(pData);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the HDFS directory of the tracker for a hash.  Trackers are sharded in to 
+	 * directories by the first four characters of the hash so no directory gets too big
+	 * and a tracker can be found from its hash without a search.
+	 * @param pHash hash of the key file
+	 * @return HDFS directory of the tracker
+	 */
+	public static String getStorageDir(String pHash) {
+		String hash = pHash.toLowerCase();
+		return Settings.TRACKER_STORAGE_DIR+hash.substring(0, 2)+"/"+hash.substring(2, 4)+"/"+hash+"/";
+	}
+
+	/**
+	 * Decide whether a tracker directory can be deleted (see TrackerGCJob).  A tracker has
+	 * expired when nothing has been stored in it for pTtl, and is orphaned if its creation 
+	 * was never finished (there is no key name file, see openTracker) and it is older than 
+	 * Settings.TRACKER_ORPHAN_AGE.  Trackers from before trackers were sharded have no key 
+	 * name file so can only expire.  A tracker holding files promoted to final output is 
+	 * kept, as is a tracker without a manifest that would show it holds none.
+	 * @param pFs HDFS file system
+	 * @param pTrackerDir tracker directory
+	 * @param pNow current time
+	 * @param pTtl time after the last file was stored that the tracker expires (ms)
+	 * @return the reason the tracker can be deleted, or null if it should be kept
+	 * @throws IOException file access error
+	 */
+	public static String getGarbageReason(FileSystem pFs, Path pTrackerDir, long pNow, long pTtl) throws IOException {
+		FileStatus[] files = pFs.listStatus(pTrackerDir);
+		if(null==files) return null;
+		//the directory's time changes when a file is created in it and the manifest's 
+		//when it is appended to
+		long lastStored = pFs.getFileStatus(pTrackerDir).getModificationTime();
+		boolean hasKeyName = false;
+		boolean hasManifest = false;
+		for(FileStatus file:files) {
+			lastStored = Math.max(lastStored, file.getModificationTime());
+			if(file.getPath().getName().equals(KEYNAMEFILE)) hasKeyName = true;
+			if(file.getPath().getName().equals(MANIFESTFILE)) hasManifest = true;
+		}
+		boolean legacy = pTrackerDir.getName().endsWith(".dir");
+		boolean orphaned = !legacy&&!hasKeyName&&pNow-lastStored>Settings.TRACKER_ORPHAN_AGE;
+		boolean expired = pNow-lastStored>pTtl;
+		if(!orphaned&&!expired) return null;
+		if(hasManifest) {
+			if(hasFinalFiles(pFs, pTrackerDir)) return null;
+		} else if(!orphaned) {
+			//nothing shows which files are final (e.g. an older tracker)
+			return null;
 		}
+		return orphaned?"orphaned":"expired";
+	}
 
+	/**
+	 * Whether any of the files in a tracker have been promoted to final output (according
+	 * to the latest entry for each in the manifest)
+	 * @param pFs HDFS file system
+	 * @param pTrackerDir tracker directory
+	 * @return true if there are promoted files, or the manifest can't be read
+	 * @throws IOException file access error
+	 */
+	private static boolean hasFinalFiles(FileSystem pFs, Path pTrackerDir) throws IOException {
+		Path manifest = new Path(pTrackerDir, MANIFESTFILE);
+		if(!pFs.exists(manifest)) return true;
+		Map<String, String> tiers = new HashMap<String, String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(pFs.open(manifest)));
+		String line = in.readLine();
+		while(line!=null) {
+			String[] entry = line.split("\t");
+			tiers.put(entry[0], entry.length>=6?entry[5]:TIER_INTERMEDIATE);
+			line = in.readLine();
+		}
+		in.close();
+		return tiers.containsValue(TIER_FINAL);
 	}
 
 	/**
@@ -169,20 +449,96 @@ public class FileTracker {
 	private String getKeyFileLocation() {
 
 		if(gDoNothing) return null;
+		if(null!=gKeyFileLocation) return gKeyFileLocation;
+		
+		gKeyFileLocation = readKeyFileLocation(gFileSystem, new Path(gHdfsStorageDir));
+		return gKeyFileLocation;
 		
+	}
+
+	/**
+	 * Is a file stored in a tracker, either as a separate file or in the tracker's container
+	 * @param pFs HDFS file system
+	 * @param pFile full path of the file in the tracker's directory
+	 * @return true if the file is stored
+	 * @throws IOException file access error
+	 */
+	public static boolean isStored(FileSystem pFs, Path pFile) throws IOException {
+		if(pFs.exists(pFile)) return true;
+		Path dir = pFile.getParent();
+		if(!pFs.exists(new Path(dir, CONTAINERFILE))) return false;
+		Path manifest = new Path(dir, MANIFESTFILE);
+		//without a manifest the container can't be checked without scanning it
+		if(!pFs.exists(manifest)) return true;
+		BufferedReader in = new BufferedReader(new InputStreamReader(pFs.open(manifest)));
+		try {
+			String line = in.readLine();
+			while(null!=line) {
+				String[] entry = line.split("\t");
+				if(entry[0].equals(pFile.getName())&&entry.length>=5&&!entry[4].equals("-")) return true;
+				line = in.readLine();
+			}
+		} finally {
+			in.close();
+		}
+		return false;
+	}
+
+	/**
+	 * List the files stored in a tracker directory, including those in its container
+	 * @param pFs HDFS file system
+	 * @param pTrackerDir the tracker's directory
+	 * @return short names of the stored files
+	 * @throws IOException file access error
+	 */
+	public static List<String> listStoredFiles(FileSystem pFs, Path pTrackerDir) throws IOException {
+		List<String> files = new LinkedList<String>();
+		Path manifest = new Path(pTrackerDir, MANIFESTFILE);
+		if(pFs.exists(manifest)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(pFs.open(manifest)));
+			try {
+				String line = in.readLine();
+				while(null!=line) {
+					String[] entry = line.split("\t");
+					if(entry.length>=4&&!files.contains(entry[0])) files.add(entry[0]);
+					line = in.readLine();
+				}
+			} finally {
+				in.close();
+			}
+			return files;
+		}
+		//an older tracker without a manifest stores each file separately
+		FileStatus[] stored = pFs.listStatus(pTrackerDir);
+		if(null!=stored) {
+			for(FileStatus file:stored) {
+				String name = file.getPath().getName();
+				if(name.equals(KEYNAMEFILE)||name.equals(KEYFILEFILE)||name.equals(CONTAINERFILE)) continue;
+				files.add(name);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Read the full path to the key file recorded in a tracker directory
+	 * @param pFs HDFS file system
+	 * @param pTrackerDir the tracker's directory
+	 * @return full path to the key file (in HDFS), or null if it was not recorded
+	 */
+	public static String readKeyFileLocation(FileSystem pFs, Path pTrackerDir) {
 		try {
-			FSDataInputStream input = gFileSystem.open(new Path(gHdfsStorageDir+KEYFILEFILE));
+			FSDataInputStream input = pFs.open(new Path(pTrackerDir, KEYFILEFILE));
 
 			BufferedReader red = new BufferedReader(new InputStreamReader(input));
 			String output = red.readLine();
-			output = output.toString().trim();
 			input.close();
-			return output;
+			if(null==output) return null;
+			return output.trim();
 			
 		} catch (IOException e) {
 			return null;
 		}
-		
 	}
 	
 	/**
@@ -194,6 +550,16 @@ public class FileTracker {
 		return gHashCode;
 	}
 
+	/**
+	 * Return the MD5 of the key file's content, which differs from getHash() for a tracker
+	 * holding identical content under another name
+	 * @return MD5 of the key file's content
+	 */
+	public String getContentHash() {
+		if(gDoNothing) return null;
+		return gContentHash;
+	}
+
 	/**
 	 * Return the key file
 	 * @return the name of the key file
@@ -227,21 +593,39 @@ public class FileTracker {
 
 		//if this is an md5sum locate the keyfile and populate the list
 		if(pHash.matches(Settings.PATTERN_HASH)) {
-			
+
 			//i.e. we were passed a hash so find the keyFile
 			try {
-				FileStatus[] fstatus = gFileSystem.globStatus(new Path(gHdfsStorageDir+"*-"+pHash+".dir*"));
-				gHdfsStorageDir = fstatus[0].getPath().toString();
-				Pattern p = Pattern.compile("(.*)/([^/]+)-("+Settings.PATTERN_HASH+")(.dir.*)");
-				Matcher m = p.matcher(fstatus[0].getPath().toString());
-				m.find();
-				//assume m.matches
-				//m.group(0) is full pattern match, then (1)(2)(3)... for the above pattern
-				gKeyFile = m.group(2);
+				FSDataInputStream input = gFileSystem.open(new Path(getStorageDir(pHash)+KEYNAMEFILE));
+				BufferedReader red = new BufferedReader(new InputStreamReader(input));
+				gKeyFile = red.readLine().trim();
+				//trackers created before content hashes were recorded are named by it
+				String contentHash = red.readLine();
+				input.close();
+				gContentHash = (null==contentHash||!contentHash.trim().matches(Settings.PATTERN_HASH))?
+						pHash.toLowerCase():contentHash.trim();
+				gHdfsStorageDir = getStorageDir(pHash);
 				gHashCode = pHash;
-				
 			} catch (IOException e) {
-				e.printStackTrace();
+				//not found - look for a tracker created before trackers were sharded
+			}
+			
+			if(gHashCode.equals("")) {
+				try {
+					FileStatus[] fstatus = gFileSystem.globStatus(new Path(gHdfsStorageDir+"*-"+pHash+".dir*"));
+					gHdfsStorageDir = fstatus[0].getPath().toString();
+					Pattern p = Pattern.compile("(.*)/([^/]+)-("+Settings.PATTERN_HASH+")(.dir.*)");
+					Matcher m = p.matcher(fstatus[0].getPath().toString());
+					m.find();
+					//assume m.matches
+					//m.group(0) is full pattern match, then (1)(2)(3)... for the above pattern
+					gKeyFile = m.group(2);
+					gHashCode = pHash;
+					gContentHash = pHash.toLowerCase();
+
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 			
 		} else {
@@ -256,21 +640,140 @@ public class FileTracker {
 		gLocalTempDir = makeLocalTempDir();
 		
 		//set this to the full hdfs path name
-		try {
-			gHdfsStorageDir = gFileSystem.getFileStatus(new Path(gHdfsStorageDir)).getPath().toString()+"/";
-		} catch (IOException e1) {
-		} 
+		gHdfsStorageDir = gFileSystem.makeQualified(new Path(gHdfsStorageDir)).toString()+"/";
 
 		gHdfsFiles = new LinkedList<String>();
+		loadFileList();
+		
+	}
+	
+	/**
+	 * Populates the list of files in the class from the tracker's manifest, or by listing
+	 * the tracker directory if there is no manifest
+	 */
+	private void loadFileList() {
+		try {
+			FSDataInputStream input = gFileSystem.open(new Path(gHdfsStorageDir+MANIFESTFILE));
+			BufferedReader red = new BufferedReader(new InputStreamReader(input));
+			Map<String, String[]> manifest = new ConcurrentHashMap<String, String[]>();
+			String line = red.readLine();
+			while(line!=null) {
+				String[] entry = line.split("\t");
+				if(entry.length>=4) {
+					if(!manifest.containsKey(entry[0])) gHdfsFiles.add(entry[0]);
+					manifest.put(entry[0], entry);
+					//the latest entry says whether the file is in the container
+					if(entry.length>=5&&!entry[4].equals("-")) {
+						gContainerIndex.put(entry[0], new long[] { Long.parseLong(entry[4]), Long.parseLong(entry[1]) });
+					} else {
+						gContainerIndex.remove(entry[0]);
+					}
+				}
+				line = red.readLine();
+			}
+			input.close();
+			gManifest = manifest;
+			return;
+		} catch (IOException e) {
+			//no manifest (e.g. an older tracker)
+		}
 		//add the existing files to the list
 		try {
 			generateFileList(new Path(gHdfsStorageDir));
 		} catch (IOException e) {
 			
 		}
-		
 	}
-	
+
+	/**
+	 * Get the lock for appending to this tracker's manifest and container
+	 * @return lock object
+	 */
+	private Object getManifestLock() {
+		return MANIFEST_LOCKS[(gHdfsStorageDir.hashCode()&0x7fffffff)%MANIFEST_LOCKS.length];
+	}
+
+	/**
+	 * Add files to the tracker's manifest.  Only one client can append to a file at once
+	 * so this retries (waiting without holding the lock).
+	 * @param pEntries manifest entries, written with one append
+	 * @throws IOException if the manifest could not be updated
+	 */
+	private void appendToManifest(List<String[]> pEntries) throws IOException {
+		String lines = "";
+		for(String[] entry:pEntries) {
+			String line = "";
+			for(String s:entry) {
+				if(line.length()>0) line += "\t";
+				line += s;
+			}
+			lines += line+"\n";
+		}
+		Path manifest = new Path(gHdfsStorageDir+MANIFESTFILE);
+		IOException error = null;
+		for(int i=0;i<MANIFEST_RETRIES;i++) {
+			try {
+				synchronized(getManifestLock()) {
+					FSDataOutputStream output;
+					String existing = "";
+					try {
+						output = gFileSystem.append(manifest);
+					} catch(FileNotFoundException e) {
+						output = gFileSystem.create(manifest, false);
+						//readers trust the manifest once it exists, so it must list the files
+						//an older tracker already holds
+						if(null==gManifest) existing = getExistingEntries();
+					}
+					output.write((existing+lines).getBytes());
+					output.close();
+				}
+				if(null!=gManifest) {
+					for(String[] entry:pEntries) gManifest.put(entry[0], entry);
+				}
+				return;
+			} catch (IOException e) {
+				//another writer has the manifest open - wait and try again
+				error = e;
+				try {
+					Thread.sleep(100*(i+1));
+				} catch (InterruptedException e1) {
+					break;
+				}
+			}
+		}
+		throw new IOException("Unable to update manifest: "+manifest, error);
+	}
+
+	/**
+	 * Get manifest entries for the files a tracker without a manifest holds (as listed when
+	 * the tracker was opened).  Their checksums are not known ("-"), and as it is not known
+	 * which were final output they are all recorded as final.
+	 * @return manifest lines
+	 * @throws IOException file access error
+	 */
+	private String getExistingEntries() throws IOException {
+		String lines = "";
+		List<String> files;
+		synchronized(gHdfsFiles) {
+			files = new ArrayList<String>(gHdfsFiles);
+		}
+		for(String name:files) {
+			long[] location = gContainerIndex.get(name);
+			if(null!=location) {
+				lines += name+"\t"+location[1]+"\t-\t"+System.currentTimeMillis()+"\t"+location[0]+"\t"+TIER_FINAL+"\n";
+				continue;
+			}
+			FileStatus status;
+			try {
+				status = gFileSystem.getFileStatus(new Path(gHdfsStorageDir+name));
+			} catch(FileNotFoundException e) {
+				continue;
+			}
+			lines += name+"\t"+status.getLen()+"\t-\t"+status.getModificationTime()+"\t-\t"+TIER_FINAL+"\n";
+		}
+		return lines;
+	}
+
 	/**
 	 * Populates the list of files in HDFS in the class  
 	 * @param pStorageDir Directory in HDFS for the keyfile
@@ -283,10 +786,15 @@ public class FileTracker {
 		if(null == fileStatus) return;
 		for(FileStatus fs:fileStatus) {
 			if(fs.isDirectory()) {
+				//files that are still being stored
+				if(fs.getPath().getName().equals(TMP_STORE_DIR)) continue;
 				generateFileList(fs.getPath());
 			} else { //i.e. not a directory
 				//add the file to the list if it is not the key file
-				if(!fs.getPath().getName().equals(KEYFILEFILE)) {
+				if(fs.getPath().getName().equals(CONTAINERFILE)) {
+					scanContainer(fs.getPath());
+				} else if(!fs.getPath().getName().equals(KEYFILEFILE)&&!fs.getPath().getName().equals(KEYNAMEFILE)&&
+						!fs.getPath().getName().equals(MANIFESTFILE)) {
 					gHdfsFiles.add(fs.getPath().toString().substring(gHdfsStorageDir.toString().length()));
 				}
 			}
@@ -294,6 +802,162 @@ public class FileTracker {
 		return;
 	}
 	
+	/**
+	 * Populates the list of files in the class from the record headers of a container file
+	 * (used when there is no manifest)
+	 * @param pContainer container file
+	 * @throws IOException file access error
+	 */
+	private void scanContainer(Path pContainer) throws IOException {
+		FSDataInputStream input = gFileSystem.open(pContainer);
+		long length = gFileSystem.getFileStatus(pContainer).getLen();
+		long offset = 0;
+		while(offset<length) {
+			input.seek(offset);
+			String header = readHeader(input);
+			if(null==header) break;
+			String[] entry = header.split("\t");
+			long start = offset+header.getBytes("UTF-8").length+1;
+			long size = Long.parseLong(entry[1]);
+			//a record cut short by a failed write ends the container
+			if(start+size>length) break;
+			if(!gContainerIndex.containsKey(entry[0])) gHdfsFiles.add(entry[0]);
+			gContainerIndex.put(entry[0], new long[] { start, size });
+			offset = start+size;
+		}
+		input.close();
+	}
+
+	/**
+	 * Read a record header (up to a new line) from a container file
+	 * @param pInput container file, positioned at a header
+	 * @return header, or null at the end of the file
+	 * @throws IOException file access error
+	 */
+	private static String readHeader(FSDataInputStream pInput) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b = pInput.read();
+		while(b!='\n') {
+			if(b<0) return null;
+			header.write(b);
+			b = pInput.read();
+		}
+		return header.toString("UTF-8");
+	}
+
+	/**
+	 * Append a file to the tracker's container file.  Only one client can append to a file
+	 * at once so opening the container is retried.
+	 * @param pLocal file to store
+	 * @param pName name to store the file as
+	 * @param pDigest digest updated with the file's contents as it is written
+	 * @return offset of the file's data in the container
+	 * @throws IOException if the file could not be appended
+	 */
+	private long appendToContainer(File pLocal, String pName, MessageDigest pDigest) throws IOException {
+		Path container = new Path(gHdfsStorageDir+CONTAINERFILE);
+		byte[] header = (pName+"\t"+pLocal.length()+"\n").getBytes("UTF-8");
+		for(int i=0;i<MANIFEST_RETRIES;i++) {
+			synchronized(getManifestLock()) {
+				FSDataOutputStream output = null;
+				long offset = 0;
+				try {
+					try {
+						output = gFileSystem.append(container);
+						//the container is closed by the last writer so its length is known
+						offset = gFileSystem.getFileStatus(container).getLen();
+					} catch(FileNotFoundException e) {
+						output = gFileSystem.create(container, false, Settings.BUFSIZE, gReplication, gBlockSize);
+						offset = 0;
+					}
+				} catch (IOException e) {
+					//another writer has the container open - wait (below) and try again
+					if(null!=output) output.close();
+					output = null;
+				}
+				if(null!=output) return writeToContainer(output, offset, header, pLocal, pDigest);
+			}
+			try {
+				Thread.sleep(100*(i+1));
+			} catch (InterruptedException e1) {
+				break;
+			}
+		}
+		throw new IOException("Unable to open container: "+container);
+	}
+
+	/**
+	 * Write a file's record to the end of the container file
+	 * @param pOutput container, open for append
+	 * @param pOffset length of the container before the record
+	 * @param pHeader record header
+	 * @param pLocal file to store
+	 * @param pDigest digest updated with the file's contents as it is written
+	 * @return offset of the file's data in the container
+	 * @throws IOException file access error
+	 */
+	private long writeToContainer(FSDataOutputStream pOutput, long pOffset, byte[] pHeader, File pLocal, 
+			MessageDigest pDigest) throws IOException {
+		try {
+			pOutput.write(pHeader);
+			FileInputStream input = new FileInputStream(pLocal);
+			try {
+				byte[] buffer = new byte[Settings.BUFSIZE];
+				int bytesRead = input.read(buffer);
+				while(bytesRead>0) {
+					pOutput.write(buffer, 0, bytesRead);
+					pDigest.update(buffer, 0, bytesRead);
+					bytesRead = input.read(buffer);
+				}
+			} finally {
+				input.close();
+			}
+		} finally {
+			pOutput.close();
+		}
+		return pOffset+pHeader.length;
+	}
+
+	/**
+	 * Copy a file out of the tracker's container file
+	 * @param pName name of the file
+	 * @param pLocal local file to write
+	 * @throws IOException file access error
+	 */
+	private void extractFromContainer(String pName, File pLocal) throws IOException {
+		long[] location = gContainerIndex.get(pName);
+		FSDataInputStream input = gFileSystem.open(new Path(gHdfsStorageDir+CONTAINERFILE));
+		input.seek(location[0]);
+		FileOutputStream output = new FileOutputStream(pLocal);
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		byte[] buffer = new byte[Settings.BUFSIZE];
+		long remaining = location[1];
+		while(remaining>0) {
+			int bytesRead = input.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+			if(bytesRead<0) break;
+			output.write(buffer, 0, bytesRead);
+			if(null!=md) md.update(buffer, 0, bytesRead);
+			remaining -= bytesRead;
+		}
+		output.close();
+		input.close();
+		if(remaining>0) {
+			pLocal.delete();
+			throw new IOException("Container ended early reading "+pName);
+		}
+		//record the checksum so the copy can be checked without reading it again
+		if(null!=md) {
+			List<String> checksums = new LinkedList<String>();
+			checksums.add("MD5:"+ChecksumEngine.toHex(md.digest()));
+			ChecksumCatalog.record(pLocal, checksums);
+		}
+	}
+
 	/**
 	 * Writes the list of files in this class to a text file
 	 * @param pLocalFile File to write the list of files to
@@ -319,16 +983,184 @@ public class FileTracker {
 	 * Stores a file in HDFS at an appropriate location
 	 * @param pLocalFilename Filename incluuding full local path
 	 * @param pHdfsFilename Filename to use in hdfs
+	 * @throws IOException if the file could not be stored or recorded in the manifest
 	 */
-	public void storeFile(String pLocalFilename, String pHdfsFilename) {
+	public void storeFile(String pLocalFilename, String pHdfsFilename) throws IOException {
+		List<String> localFilenames = new LinkedList<String>();
+		localFilenames.add(pLocalFilename);
+		List<String> hdfsFilenames = new LinkedList<String>();
+		hdfsFilenames.add(pHdfsFilename);
+		storeFiles(localFilenames, hdfsFilenames);
+	}
+
+	/**
+	 * Stores a set of files in HDFS at an appropriate location.  The files are uploaded at 
+	 * the same time (see Settings.UPLOAD_THREADS) then the manifest, the list of files and 
+	 * the JMS queue are updated once for the whole set.
+	 * @param pLocalFilenames Filenames including full local path
+	 * @param pHdfsFilenames Filenames to use in hdfs, in the same order as pLocalFilenames
+	 * @throws IOException if any of the files could not be stored or recorded in the manifest
+	 */
+	public void storeFiles(List<String> pLocalFilenames, List<String> pHdfsFilenames) throws IOException {
 		if(gDoNothing) return;
+		if(pLocalFilenames.size()!=pHdfsFilenames.size()) {
+			throw new IllegalArgumentException("Different numbers of local and hdfs filenames");
+		}
+		List<Future<String[]>> uploads = new LinkedList<Future<String[]>>();
+		for(int i=0;i<pLocalFilenames.size();i++) {
+			final String localFilename = pLocalFilenames.get(i);
+			final String hdfsFilename = pHdfsFilenames.get(i);
+			uploads.add(gUploadPool.submit(new Callable<String[]>() {
+				public String[] call() throws IOException {
+					return uploadFile(localFilename, hdfsFilename);
+				}
+			}));
+		}
+		//wait for all the uploads, so this takes as long as the slowest file
+		List<String[]> entries = new LinkedList<String[]>();
+		String stored = "";
+		IOException error = null;
+		for(Future<String[]> upload:uploads) {
+			try {
+				String[] entry = upload.get();
+				entries.add(entry);
+				if(stored.length()>0) stored += ",";
+				stored += gHdfsStorageDir+entry[0];
+			} catch (InterruptedException e) {
+				error = new IOException("Interrupted storing files in "+gHdfsStorageDir);
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				error = (e.getCause() instanceof IOException)?(IOException)e.getCause():
+					new IOException("Error storing files in "+gHdfsStorageDir+": "+e.getCause());
+			}
+		}
+		if(entries.size()>0) {
+			//record the files in the manifest so readers don't have to ask HDFS about them
+			appendToManifest(entries);
+			//push the stored files via JMS
+			JMSComms.sendMessage(getHash(), "FILES:"+stored);
+			synchronized(gHdfsFiles) {
+				for(String[] entry:entries) {
+					if(!gHdfsFiles.contains(entry[0])) gHdfsFiles.add(entry[0]);
+				}
+			}
+		}
+		//the files that were stored are recorded, but the store as a whole has failed
+		if(null!=error) throw error;
+	}
+
+	/**
+	 * Copies one file in to HDFS (or the tracker's container file) and the node's cache
+	 * @param pLocalFilename Filename including full local path
+	 * @param pHdfsFilename Filename to use in hdfs
+	 * @return manifest entry for the file
+	 * @throws IOException if the file could not be stored
+	 */
+	private String[] uploadFile(String pLocalFilename, String pHdfsFilename) throws IOException {
+		Path dest = new Path(gHdfsStorageDir+pHdfsFilename);
+		//the checksum is calculated as the file is uploaded, rather than reading it again
+		MessageDigest md;
 		try {
-			gFileSystem.copyFromLocalFile(new Path(pLocalFilename), new Path(gHdfsStorageDir+pHdfsFilename));
-			//push the stored file via JMS
-			JMSComms.sendMessage(getHash(), "FILE:"+gHdfsStorageDir+pHdfsFilename);
-		} catch (IOException e) {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		String offset = "-";
+		if(gUseContainer) {
+			try {
+				offset = Long.toString(appendToContainer(new File(pLocalFilename), pHdfsFilename, md));
+			} catch (IOException e) {
+				//store it as a separate file instead
+				e.printStackTrace();
+				md.reset();
+			}
+		}
+		if(!offset.equals("-")) {
+			gContainerIndex.put(pHdfsFilename, new long[] { Long.parseLong(offset), new File(pLocalFilename).length() });
+		} else if(null==gAttemptId) {
+			copyToHdfs(new File(pLocalFilename), dest, md);
+		} else {
+			//another attempt may be storing the same file so write it under a temporary name
+			//and rename it - the files are the same so it doesn't matter which is kept
+			Path tmp = new Path(gHdfsStorageDir+TMP_STORE_DIR+"/"+dest.getName()+"."+gAttemptId);
+			copyToHdfs(new File(pLocalFilename), tmp, md);
+			if(gFileSystem.exists(dest)) gFileSystem.delete(dest, false);
+			if(!gFileSystem.rename(tmp, dest)) {
+				//the other attempt got there first
+				gFileSystem.delete(tmp, false);
+			}
+		}
+		File local = new File(pLocalFilename);
+		String checksum = "MD5:"+ChecksumEngine.toHex(md.digest());
+		//the report can use this rather than reading the file again
+		List<String> checksums = new LinkedList<String>();
+		checksums.add(checksum);
+		ChecksumCatalog.record(local, checksums);
+		//later stages on this node can use the local copy
+		LocalCache.put(checksum, local);
+		return new String[] { pHdfsFilename, Long.toString(local.length()), 
+				checksum, Long.toString(System.currentTimeMillis()), offset, TIER_INTERMEDIATE };
+	}
+
+	/**
+	 * Copy a local file in to HDFS with the replication and block size for intermediate files
+	 * @param pLocal local file
+	 * @param pDest HDFS file to write (overwritten if it exists)
+	 * @param pDigest digest updated with the file's contents as it is written
+	 * @throws IOException file access error
+	 */
+	private void copyToHdfs(File pLocal, Path pDest, MessageDigest pDigest) throws IOException {
+		FSDataOutputStream output = gFileSystem.create(pDest, true, Settings.BUFSIZE, gReplication, gBlockSize);
+		FileInputStream input = new FileInputStream(pLocal);
+		try {
+			byte[] buffer = new byte[Settings.BUFSIZE];
+			int bytesRead = input.read(buffer);
+			while(bytesRead>0) {
+				output.write(buffer, 0, bytesRead);
+				pDigest.update(buffer, 0, bytesRead);
+				bytesRead = input.read(buffer);
+			}
+		} finally {
+			input.close();
+			output.close();
 		}
-		gHdfsFiles.add(pHdfsFilename);
+	}
+
+	/**
+	 * Promote stored files to final output, raising their replication to the file system's
+	 * default.  Files in the container can't be replicated separately so the whole container
+	 * is promoted.
+	 * @param pHdfsFilenames names of the files in the tracker
+	 * @throws IOException if the new tier could not be recorded in the manifest
+	 */
+	public void promoteFiles(List<String> pHdfsFilenames) throws IOException {
+		if(gDoNothing||pHdfsFilenames.size()==0) return;
+		short replication = gFileSystem.getDefaultReplication();
+		List<String[]> entries = new LinkedList<String[]>();
+		boolean containerPromoted = false;
+		for(String name:pHdfsFilenames) {
+			try {
+				if(gContainerIndex.containsKey(name)) {
+					if(!containerPromoted) {
+						gFileSystem.setReplication(new Path(gHdfsStorageDir+CONTAINERFILE), replication);
+						containerPromoted = true;
+					}
+				} else {
+					gFileSystem.setReplication(new Path(gHdfsStorageDir+name), replication);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			//record the new tier, keeping the rest of the file's entry
+			if(null!=gManifest&&gManifest.containsKey(name)) {
+				String[] entry = Arrays.copyOf(gManifest.get(name), 6);
+				if(null==entry[4]) entry[4] = "-";
+				entry[5] = TIER_FINAL;
+				entries.add(entry);
+			}
+		}
+		if(entries.size()>0) appendToManifest(entries);
 	}
 	
 	/**
@@ -352,6 +1184,9 @@ public class FileTracker {
 			}
 			
 			if(!pFileName.toLowerCase().startsWith("hdfs")) {
+				//the manifest lists every file stored in the tracker
+				if(null!=gManifest) return gManifest.containsKey(pFileName);
+				if(gContainerIndex.containsKey(pFileName)) return true;
 				return gFileSystem.exists(new Path(gHdfsStorageDir+pFileName));
 			}
 			return gFileSystem.exists(new Path(pFileName));
@@ -361,7 +1196,49 @@ public class FileTracker {
 	}
 	
 	/**
-	 * If the file exists return the full path to the file
+	 * Has a file been promoted to final output (see promoteFiles)
+	 * @param pFileName file to check (short name only)
+	 * @return true if the manifest records the file as final
+	 */
+	public boolean isFinal(String pFileName) {
+		if(gDoNothing||null==gManifest) return false;
+		String[] entry = gManifest.get(pFileName);
+		return null!=entry&&entry.length>=6&&TIER_FINAL.equals(entry[5]);
+	}
+
+	/**
+	 * Get the hash of the tracker a file is stored in
+	 * @param pFs HDFS file system
+	 * @param pFile full path of a file
+	 * @return hash of the tracker holding the file, or null if it is not in a tracker
+	 */
+	public static String getTrackerHash(FileSystem pFs, Path pFile) {
+		String storage = pFs.makeQualified(new Path(Settings.TRACKER_STORAGE_DIR)).toString()+"/";
+		Path dir = pFs.makeQualified(pFile).getParent();
+		if(null==dir||!dir.toString().startsWith(storage)) return null;
+		if(dir.getName().matches(Settings.PATTERN_HASH)) return dir.getName();
+		//a tracker created before trackers were sharded
+		Matcher m = Pattern.compile(".+-("+Settings.PATTERN_HASH+")\\.dir").matcher(dir.getName());
+		return m.matches()?m.group(1):null;
+	}
+
+	/**
+	 * Get the checksum of a file from the manifest
+	 * @param pFileName file to get the checksum of (short name only)
+	 * @return checksum of the file (e.g. MD5:xxxx), or null if not known
+	 */
+	public String getChecksum(String pFileName) {
+		if(gDoNothing||null==gManifest) return null;
+		String[] entry = gManifest.get(pFileName);
+		//files recorded when an older tracker's manifest was created have no checksum
+		if(null==entry||!entry[2].contains(":")) return null;
+		return entry[2];
+	}
+
+	/**
+	 * If the file exists return the full path to the file.  For a file appended to the 
+	 * tracker's container this is a logical path: it does not exist in HDFS, but names the
+	 * file in the tracker's manifest (see isStored and listStoredFiles)
 	 * @param pFileName file to get a full reference for (short name only)
 	 * @return full pathname to the file
 	 */
@@ -391,24 +1268,110 @@ public class FileTracker {
 		
 		File localTempFile = new File(gLocalTempDir+pFileName);
 		if(localTempFile.exists()) {
-			//do nothing - assume file is ok
-			//could check the md5 maybe?			
-		} else {
-			//check the directory exists
-			File localTempDir = new File(getLocalTempDir());
-			if(!localTempDir.exists()) {
-				makeLocalTempDir();
-			}
-			//copy the file from hdfs to local storage
+			//use the local copy unless it does not match the stored file
+			if(verifyLocalFile(pFileName, localTempFile)) return;
+			System.out.println("Local copy does not match stored file, copying again: "+pFileName);
+			localTempFile.delete();
+		}
+		//check the directory exists
+		File localTempDir = new File(getLocalTempDir());
+		if(!localTempDir.exists()) {
+			makeLocalTempDir();
+		}
+		//use the node's copy if it has one
+		String checksum = getChecksum(pFileName);
+		if(LocalCache.get(checksum, localTempFile)) {
+			//the job's log needs the checksum, which is already known
+			List<String> checksums = new LinkedList<String>();
+			checksums.add(checksum);
+			ChecksumCatalog.record(localTempFile, checksums);
+			return;
+		}
+		//copy the file from hdfs to local storage - the checksum is calculated as it is 
+		//copied, so a bad copy can be tried again
+		for(int i=0;i<COPY_ATTEMPTS;i++) {
 			try {
-				Tools.copyInputToLocalTemp(localTempDir,gFileSystem,getHDFSFilePath(pFileName));
+				File local = localTempFile;
+				if(gContainerIndex.containsKey(pFileName)) {
+					extractFromContainer(pFileName, localTempFile);
+				} else {
+					local = Tools.copyInputToLocalTemp(localTempDir,gFileSystem,getHDFSFilePath(pFileName));
+				}
+				if(Boolean.FALSE.equals(compareLocalFile(pFileName, local))) {
+					System.out.println("Copy does not match stored file: "+pFileName);
+					local.delete();
+					continue;
+				}
+				LocalCache.put(checksum, local);
 			} catch (IOException e) {
-				return;
 			}
+			return;
 		}
 		
 		return;
 	}
+
+	/**
+	 * Compare a local copy of a stored file with the file's manifest entry, without reading 
+	 * the copy.  The copy matches if it is the same size and its checksum, recorded when it
+	 * was copied from or uploaded to the tracker (see ChecksumCatalog), matches.  Any other 
+	 * copy has to be read, as its size and time can't show that it is unchanged.
+	 * @param pFileName name of the file in the tracker
+	 * @param pLocal local copy
+	 * @return true if the copy matches, false if it doesn't, or null if this can't be told
+	 * without reading the copy
+	 */
+	private Boolean compareLocalFile(String pFileName, File pLocal) {
+		if(null==gManifest) return null;
+		String[] entry = gManifest.get(pFileName);
+		if(null==entry) return null;
+		if(pLocal.length()!=Long.parseLong(entry[1])) return false;
+		if(!entry[2].contains(":")) return null;
+		String type = entry[2].substring(0, entry[2].indexOf(":"));
+		String recorded = ChecksumCatalog.get(type, pLocal);
+		if(null!=recorded) {
+			return entry[2].equalsIgnoreCase(type+":"+recorded);
+		}
+		return null;
+	}
+
+	/**
+	 * Check a local copy of a stored file against the file's manifest entry, reading the
+	 * copy if compareLocalFile can't tell
+	 * @param pFileName name of the file in the tracker
+	 * @param pLocal local copy
+	 * @return false if the copy does not match (or can't be read), otherwise true
+	 */
+	private boolean verifyLocalFile(String pFileName, File pLocal) {
+		Boolean matches = compareLocalFile(pFileName, pLocal);
+		if(null!=matches) return matches;
+		String[] entry = (null==gManifest)?null:gManifest.get(pFileName);
+		//nothing to check the copy against
+		if(null==entry||!entry[2].contains(":")) return true;
+		try {
+			String type = entry[2].substring(0, entry[2].indexOf(":"));
+			return entry[2].equalsIgnoreCase(type+":"+Tools.generateChecksum(type, pLocal.getAbsolutePath()));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Get the checksum of the local copy of a stored file (see makeFileLocal).  This is 
+	 * taken from the manifest if the copy matches the stored file, so the copy is only 
+	 * read if that can't be told otherwise.
+	 * @param pFileName name of the file in the tracker
+	 * @return checksum of the local copy (e.g. MD5:xxxx)
+	 * @throws IOException file access error
+	 */
+	public String getLocalChecksum(String pFileName) throws IOException {
+		File local = new File(gLocalTempDir+pFileName);
+		if(!gDoNothing&&Boolean.TRUE.equals(compareLocalFile(pFileName, local))) {
+			return getChecksum(pFileName);
+		}
+		return Tools.generateChecksum(local.getAbsolutePath());
+	}
 	
 	/**
 	 * Make sure the local temp dir exists (create if necessary) 
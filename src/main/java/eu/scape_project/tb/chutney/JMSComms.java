@@ -17,9 +17,12 @@
 
 package eu.scape_project.tb.chutney;
 
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
-import org.apache.activemq.broker.BrokerService;
-import org.apache.activemq.broker.jmx.BrokerView;
+import org.apache.activemq.command.ActiveMQQueue;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -76,6 +79,136 @@ public class JMSComms {
 
 	}
 
+	/**
+	 * Sends a list of messages to the ActiveMQ server using one connection
+	 * @param pKey key for the messages (i.e. queue name)
+	 * @param pMessages messages to send, in order
+	 * @throws IOException if the messages could not be sent (none are sent)
+	 */
+	public static void sendMessages(String pKey, List<String> pMessages) throws IOException {
+
+		try {
+
+			ActiveMQConnectionFactory amq = new ActiveMQConnectionFactory(Settings.ACTIVEMQ_ADDRESS);
+
+			Connection conn = amq.createConnection();
+			conn.start();
+
+			//transacted so the messages are sent to the server in one go
+			Session sess = conn.createSession(true, Session.SESSION_TRANSACTED);
+
+			Destination dest = sess.createQueue(pKey);
+
+			MessageProducer prod = sess.createProducer(dest);
+			//note use of persistent messages
+			prod.setDeliveryMode(DeliveryMode.PERSISTENT);
+
+			for(String message:pMessages) {
+				prod.send(sess.createTextMessage(message));
+			}
+			sess.commit();
+
+			prod.close();
+			sess.close();
+			conn.close();
+
+		} catch(JMSException e) {
+			throw new IOException("Error sending messages to "+pKey+": "+e.getMessage(), e);
+		}
+
+	}
+
+	/**
+	 * Takes messages from a queue one at a time, each acknowledged only once it has been
+	 * dealt with.  A message that is not acknowledged before the reader is closed (or its
+	 * JVM dies) is returned to the queue and delivered again, to this or another reader.
+	 */
+	public static class QueueReader {
+
+		/**
+		 * Connection to the ActiveMQ server
+		 */
+		private Connection gConn;
+		/**
+		 * Session the messages are received in
+		 */
+		private Session gSess;
+		/**
+		 * Consumer for the queue
+		 */
+		private MessageConsumer gCons;
+		/**
+		 * Last message received, not yet acknowledged
+		 */
+		private Message gMessage = null;
+
+		/**
+		 * Connect to a queue
+		 * @param pKey key for the queue
+		 * @throws IOException if the queue could not be opened
+		 */
+		public QueueReader(String pKey) throws IOException {
+			try {
+				ActiveMQConnectionFactory amq = new ActiveMQConnectionFactory(Settings.ACTIVEMQ_ADDRESS);
+				//take one line at a time - by default the first reader is sent most of the queue,
+				//leaving nothing for the others to take
+				amq.getPrefetchPolicy().setQueuePrefetch(1);
+				gConn = amq.createConnection();
+				gConn.start();
+				gSess = gConn.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+				gCons = gSess.createConsumer(gSess.createQueue(pKey));
+			} catch(JMSException e) {
+				close();
+				throw new IOException("Error opening queue "+pKey+": "+e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Receive the next message.  Any previous message must have been acknowledged.
+		 * @return message, or null if the queue is empty
+		 * @throws IOException if the server could not be read
+		 */
+		public String receive() throws IOException {
+			try {
+				//as receiveMessage, wait as stored messages may not be returned immediately
+				gMessage = gCons.receive(1000);
+				if(null==gMessage) return null;
+				if(gMessage instanceof TextMessage) return ((TextMessage)gMessage).getText();
+				//not a message we can use
+				acknowledge();
+				return receive();
+			} catch(JMSException e) {
+				throw new IOException("Error receiving message: "+e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Acknowledge the last message received, so it is removed from the queue
+		 * @throws IOException if the server could not be told
+		 */
+		public void acknowledge() throws IOException {
+			if(null==gMessage) return;
+			try {
+				gMessage.acknowledge();
+				gMessage = null;
+			} catch(JMSException e) {
+				throw new IOException("Error acknowledging message: "+e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Close the connection.  An unacknowledged message is returned to the queue.
+		 */
+		public void close() {
+			try {
+				if(null!=gConn) gConn.close();
+			} catch(JMSException e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
 	/**
 	 * Receive a message from the ActiveMQ server, associated with the key
 	 * @param pKey key to recover messages for
@@ -123,19 +256,21 @@ public class JMSComms {
 	}
 	
 	/**
-	 * Delete the message queue from the ActiveMQ server
-	 * (Note: this does not work at the moment)
+	 * Delete the message queue from the ActiveMQ server, with any messages left on it
 	 * @param pKey Key for the queue to delete
 	 */
 	public static void deleteQueue(String pKey) {
 		
 		try {
 
-			BrokerView bv = new BrokerService().getAdminView();
-			bv.removeQueue(pKey);
+			ActiveMQConnectionFactory amq = new ActiveMQConnectionFactory(Settings.ACTIVEMQ_ADDRESS);
+
+			ActiveMQConnection conn = (ActiveMQConnection)amq.createConnection();
+			conn.start();
+			conn.destroyDestination(new ActiveMQQueue(pKey));
+			conn.close();
 
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
+		} catch (JMSException e) {
 			e.printStackTrace();
 		}
 		
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class keeps the recent run times of each tool so that runs that are taking 
+ * much longer than usual can be spotted (and hedged, see XMLCommandLineJob).
+ * Times are kept per JVM, which with JVM reuse (see ChutneyDriver) covers all the 
+ * maps of a job run on a node.
+ * @author wpalmer
+ *
+ */
+public class LatencyTracker {
+
+	/**
+	 * Recent run times in ms, keyed on tool name.  Each is a ring buffer of 
+	 * Settings.HEDGE_SAMPLES entries.
+	 */
+	private static HashMap<String, long[]> gTimes = new HashMap<String, long[]>();
+	/**
+	 * Number of run times recorded, keyed on tool name
+	 */
+	private static HashMap<String, Integer> gCounts = new HashMap<String, Integer>();
+
+	/**
+	 * Record the run time of a tool
+	 * @param pTool name of the tool
+	 * @param pMillis run time in ms
+	 */
+	public static synchronized void record(String pTool, long pMillis) {
+		long[] times = gTimes.get(pTool);
+		if(null==times) {
+			times = new long[Settings.HEDGE_SAMPLES];
+			gTimes.put(pTool, times);
+			gCounts.put(pTool, 0);
+		}
+		int count = gCounts.get(pTool);
+		times[count%times.length] = pMillis;
+		gCounts.put(pTool, count+1);
+	}
+
+	/**
+	 * Get a percentile of the recent run times of a tool
+	 * @param pTool name of the tool
+	 * @param pPercentile percentile to get (0-100)
+	 * @return run time in ms, or -1 if fewer than Settings.HEDGE_MIN_SAMPLES runs are recorded
+	 */
+	public static synchronized long getPercentile(String pTool, double pPercentile) {
+		long[] times = gTimes.get(pTool);
+		if(null==times) return -1;
+		int count = Math.min(gCounts.get(pTool), times.length);
+		if(count<Settings.HEDGE_MIN_SAMPLES) return -1;
+		long[] sorted = Arrays.copyOf(times, count);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(pPercentile/100*count)-1;
+		return sorted[Math.max(0, Math.min(count-1, index))];
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.HardLink;
+
+/**
+ * This class is a cache of files on the local node, shared by all the map JVMs on the
+ * node, so a file already on the node doesn't have to be fetched from HDFS again.  Files
+ * are stored by checksum and are hard linked in and out of the cache, so nothing is 
+ * copied.  The least recently used files are removed when the cache gets bigger than 
+ * Settings.LOCAL_CACHE_QUOTA.  When a file was last used is kept in a marker file next 
+ * to it, as changing the time of the file itself would change it for every job temp dir
+ * linked to it (invalidating their ChecksumCatalog entries).
+ * 
+ * The cache is off unless the job enables it (see Settings.LOCAL_CACHE_CONF_SETTING).
+ * Note: as files are hard linked, tools must not modify their input files.
+ * @author wpalmer
+ *
+ */
+public class LocalCache {
+
+	/**
+	 * Lock file used to stop JVMs changing the cache at the same time
+	 */
+	private static final String LOCKFILE = ".lock";
+	/**
+	 * Suffix of the marker file whose modification time is when a cached file was last used
+	 */
+	private static final String USED_SUFFIX = ".used";
+
+	/**
+	 * Lock for threads in this JVM (a FileLock is held for the whole JVM)
+	 */
+	private static final Object LOCK = new Object();
+
+	/**
+	 * Estimate of the size of the cache, -1 if not yet known
+	 */
+	private static long gSize = -1;
+
+	/**
+	 * Whether the cache is used
+	 */
+	private static boolean gEnabled = Settings.LOCAL_CACHE_ENABLED;
+
+	/**
+	 * Set whether the cache is used
+	 * @param pEnabled true to use the cache
+	 */
+	public static void setEnabled(boolean pEnabled) {
+		gEnabled = pEnabled;
+	}
+
+	/**
+	 * Get the file in the cache for a checksum
+	 * @param pChecksum checksum of the file (e.g. MD5:xxxx)
+	 * @return the file in the cache
+	 */
+	private static File getCacheFile(String pChecksum) {
+		return new File(Settings.LOCAL_CACHE_DIR, pChecksum.replace(":", "-").toLowerCase());
+	}
+
+	/**
+	 * Get the marker file recording when a cached file was last used
+	 * @param pCached file in the cache
+	 * @return the marker file
+	 */
+	private static File getUsedFile(File pCached) {
+		return new File(pCached.getPath()+USED_SUFFIX);
+	}
+
+	/**
+	 * Record that a cached file has been used
+	 * @param pCached file in the cache
+	 * @throws IOException file access error
+	 */
+	private static void markUsed(File pCached) throws IOException {
+		File used = getUsedFile(pCached);
+		if(!used.createNewFile()) used.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Get when a cached file was last used
+	 * @param pCached file in the cache
+	 * @return time it was last used
+	 */
+	private static long getLastUsed(File pCached) {
+		File used = getUsedFile(pCached);
+		return used.exists()?used.lastModified():pCached.lastModified();
+	}
+
+	/**
+	 * Is a file in the cache directory one of the cache's own files rather than a cached file
+	 * @param pFile file in the cache directory
+	 * @return true for the lock and marker files
+	 */
+	private static boolean isMetadata(File pFile) {
+		return pFile.getName().equals(LOCKFILE)||pFile.getName().endsWith(USED_SUFFIX);
+	}
+
+	/**
+	 * Link a file from the cache in to place, if the cache has it
+	 * @param pChecksum checksum of the file (e.g. MD5:xxxx)
+	 * @param pFile where to put the file
+	 * @return true if the file was in the cache and has been linked to pFile
+	 */
+	public static boolean get(String pChecksum, File pFile) {
+		if(!gEnabled||null==pChecksum) return false;
+		synchronized(LOCK) {
+			FileLock lock = null;
+			try {
+				lock = lock();
+				File cached = getCacheFile(pChecksum);
+				if(!cached.exists()) return false;
+				HardLink.createHardLink(cached, pFile);
+				markUsed(cached);
+				System.out.println("Local cache hit: "+pFile.getName());
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Add a file to the cache
+	 * @param pChecksum checksum of the file (e.g. MD5:xxxx)
+	 * @param pFile file to add
+	 */
+	public static void put(String pChecksum, File pFile) {
+		if(!gEnabled||null==pChecksum||!pFile.exists()) return;
+		synchronized(LOCK) {
+			FileLock lock = null;
+			try {
+				lock = lock();
+				File cached = getCacheFile(pChecksum);
+				if(cached.exists()) {
+					markUsed(cached);
+					return;
+				}
+				HardLink.createHardLink(pFile, cached);
+				markUsed(cached);
+				if(gSize<0) {
+					gSize = getSize();
+				} else {
+					gSize += pFile.length();
+				}
+				if(gSize>Settings.LOCAL_CACHE_QUOTA) {
+					evict();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Get the files in the cache
+	 * @return files in the cache
+	 */
+	private static File[] listFiles() {
+		File[] files = new File(Settings.LOCAL_CACHE_DIR).listFiles();
+		if(null==files) return new File[0];
+		return files;
+	}
+
+	/**
+	 * Get the size of the files in the cache
+	 * @return size of the cache in bytes
+	 */
+	private static long getSize() {
+		long size = 0;
+		for(File file:listFiles()) {
+			if(!isMetadata(file)) size += file.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Remove the least recently used files until the cache is 90% of the quota.
+	 * Any job temp dirs linked to a removed file keep their copy.
+	 */
+	private static void evict() {
+		File[] files = listFiles();
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for(File file:files) {
+			if(!isMetadata(file)) lastUsed.put(file, getLastUsed(file));
+		}
+		files = lastUsed.keySet().toArray(new File[lastUsed.size()]);
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File pA, File pB) {
+				long a = lastUsed.get(pA);
+				long b = lastUsed.get(pB);
+				return a<b?-1:(a==b?0:1);
+			}
+		});
+		//other JVMs will have added files too, so recount
+		gSize = getSize();
+		for(File file:files) {
+			if(gSize<=Settings.LOCAL_CACHE_QUOTA*0.9) break;
+			long length = file.length();
+			if(file.delete()) {
+				gSize -= length;
+				getUsedFile(file).delete();
+			}
+		}
+	}
+
+	/**
+	 * Lock the cache against changes from other JVMs on the node
+	 * @return the lock
+	 * @throws IOException file access error
+	 */
+	private static FileLock lock() throws IOException {
+		new File(Settings.LOCAL_CACHE_DIR).mkdirs();
+		RandomAccessFile file = new RandomAccessFile(new File(Settings.LOCAL_CACHE_DIR, LOCKFILE), "rw");
+		try {
+			return file.getChannel().lock();
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		} catch (RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Release a lock on the cache
+	 * @param pLock lock to release (may be null)
+	 */
+	private static void release(FileLock pLock) {
+		if(null==pLock) return;
+		try {
+			pLock.release();
+			pLock.channel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Downloads a large file from HDFS with several streams at once.  The file is split in
+ * to block aligned ranges, each read with positional reads on its own stream (so from
+ * the datanode holding that block) and written straight to its place in a local file
+ * that is allocated at full size before the download starts.
+ *
+ * Unlike Tools.copyInputToLocalTemp's single stream, no checksums are calculated as the
+ * file is downloaded; they are calculated when they are first needed (see ChecksumCatalog).
+ * @author wpalmer
+ *
+ */
+public class RangedDownload {
+
+	/**
+	 * Number of ranges downloaded at the same time for each file
+	 */
+	private static int gThreads = Settings.DOWNLOAD_THREADS;
+
+	private RangedDownload() {}
+
+	/**
+	 * Set the number of ranges downloaded at the same time for each file
+	 * @param pThreads number of ranges (1 downloads files with one stream)
+	 */
+	public static void setThreads(int pThreads) {
+		gThreads = pThreads;
+	}
+
+	/**
+	 * Whether a file should be downloaded in ranges
+	 * @param pStatus status of the HDFS file
+	 * @return true if the file spans more than one range and more than one thread is allowed
+	 */
+	public static boolean isWorthwhile(FileStatus pStatus) {
+		return gThreads>1&&pStatus.getLen()>getRangeSize(pStatus);
+	}
+
+	/**
+	 * Download a file from HDFS in block aligned ranges, several at once
+	 * @param pFs HDFS file system
+	 * @param pStatus status of the file to download
+	 * @param pLocal local file to write (overwritten if it exists, deleted if the download fails)
+	 * @throws IOException file access error
+	 */
+	public static void download(final FileSystem pFs, FileStatus pStatus, File pLocal) throws IOException {
+		final Path path = pStatus.getPath();
+		long length = pStatus.getLen();
+		long rangeSize = getRangeSize(pStatus);
+		int ranges = (int)((length+rangeSize-1)/rangeSize);
+
+		RandomAccessFile local = new RandomAccessFile(pLocal, "rw");
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(gThreads, ranges)), new ThreadFactory() {
+			public Thread newThread(Runnable pRunnable) {
+				Thread thread = new Thread(pRunnable, "download");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		boolean success = false;
+		try {
+			local.setLength(length);
+			final FileChannel channel = local.getChannel();
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for(long start=0;start<length;start+=rangeSize) {
+				final long from = start;
+				final long to = Math.min(length, start+rangeSize);
+				results.add(pool.submit(new Callable<Long>() {
+					public Long call() throws IOException {
+						return downloadRange(pFs, path, channel, from, to);
+					}
+				}));
+			}
+			for(Future<Long> result:results) {
+				try {
+					result.get();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted downloading "+path);
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+					throw new IOException("Error downloading "+path+": "+e.getCause());
+				}
+			}
+			success = true;
+		} finally {
+			//stop any ranges still running if one has failed
+			pool.shutdownNow();
+			local.close();
+			if(!success) pLocal.delete();
+		}
+	}
+
+	/**
+	 * Download one range of a file
+	 * @param pFs HDFS file system
+	 * @param pPath file to download
+	 * @param pLocal local file to write the range to
+	 * @param pStart offset of the first byte of the range
+	 * @param pEnd offset after the last byte of the range
+	 * @return number of bytes downloaded
+	 * @throws IOException file access error
+	 */
+	private static long downloadRange(FileSystem pFs, Path pPath, FileChannel pLocal, long pStart, long pEnd) throws IOException {
+		//each range has its own stream so they are read from their datanodes at the same time
+		FSDataInputStream input = pFs.open(pPath);
+		byte[] buffer = new byte[Settings.BUFSIZE*8];
+		long position = pStart;
+		try {
+			while(position<pEnd) {
+				if(Thread.currentThread().isInterrupted()) throw new IOException("Interrupted downloading "+pPath);
+				int bytesRead = input.read(position, buffer, 0, (int)Math.min(buffer.length, pEnd-position));
+				if(bytesRead<0) throw new IOException("File ended early downloading "+pPath+" at "+position);
+				ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+				long writePosition = position;
+				while(data.hasRemaining()) {
+					writePosition += pLocal.write(data, writePosition);
+				}
+				position += bytesRead;
+			}
+		} finally {
+			input.close();
+		}
+		return position-pStart;
+	}
+
+	/**
+	 * @param pStatus status of the HDFS file
+	 * @return size of the ranges to download the file in (its block size)
+	 */
+	private static long getRangeSize(FileStatus pStatus) {
+		long blockSize = pStatus.getBlockSize();
+		return blockSize>0?blockSize:Settings.DOWNLOAD_RANGE_SIZE;
+	}
+
+}
@@ -46,12 +46,47 @@ public final class Settings {
 	 * -> move this to WrapperSettings?
 	 */
 	public static final String TRACKER_STORAGE_DIR = OUTPUT_DIR+"/fileTracker/";
+	/**
+	 * Default replication of the intermediate files stored in FileTrackers.  These are only 
+	 * needed until the end of the pipeline so are not replicated as much as final output
+	 */
+	public static final short TRACKER_REPLICATION = 2;
+	/**
+	 * Default block size of the intermediate files stored in FileTrackers
+	 */
+	public static final long TRACKER_BLOCK_SIZE = 128L*1024*1024;
+	/**
+	 * Default time after the last file was stored in a FileTracker that it can be deleted 
+	 * by a TrackerGCJob (ms).  This must be longer than a pipeline takes to run.
+	 */
+	public static final long TRACKER_TTL = 14L*24*60*60*1000;
+	/**
+	 * Time after which a FileTracker whose creation didn't finish can be deleted (ms)
+	 */
+	public static final long TRACKER_ORPHAN_AGE = 24L*60*60*1000;
+	/**
+	 * Number of threads each TrackerGCJob map uses to delete tracker directories
+	 */
+	public static final int GC_THREADS = 16;
+	/**
+	 * Directory in HDFS for the index of content that has already been processed (see DedupIndex)
+	 */
+	public static final String DEDUP_DIR = OUTPUT_DIR+"dedup/";
 
 	/**
 	 * Default number of maps
 	 */
 	//public static final int NUM_MAPS = 2;
 	
+	/**
+	 * Default number of input lines given to each map
+	 */
+	public static final int DEFAULT_LINES_PER_MAP = 1;
+	/**
+	 * Default number of input lines processed concurrently in each map
+	 */
+	public static final int DEFAULT_MAP_THREADS = 1;
+	
 	/**
 	 * Version number
 	 */
@@ -193,6 +228,11 @@ public final class Settings {
 	 */
 	public static final String DISSIMILAR_EXT = ".diss";
 	
+	/**
+	 * Command that runs a tool in its own process group (see Tools.inProcessGroup)
+	 */
+	public static final String SETSID = "setsid";
+	
 	//taverna command line settings
 	/**
 	 * Shell required to execute Taverna command line shell script
@@ -256,6 +296,73 @@ public final class Settings {
 	 * Location of the temporary directory to use for processing
 	 */
 	public static final String TMP_DIR = "/tmp/hadooptmp-6/";
+	/**
+	 * Whether files fetched from and stored in FileTrackers are kept in the node's local cache
+	 * by default (see LOCAL_CACHE_CONF_SETTING)
+	 */
+	public static final boolean LOCAL_CACHE_ENABLED = false;
+	/**
+	 * Local directory for the node's file cache (see LocalCache) - must be on the same 
+	 * file system as TMP_DIR so files can be hard linked
+	 */
+	public static final String LOCAL_CACHE_DIR = TMP_DIR+"cache/";
+	/**
+	 * Time after which files and directories in TMP_DIR that have not been modified are
+	 * deleted by TrackerGCJob (ms).  This must be longer than mapred.task.timeout.
+	 */
+	public static final long TMP_DIR_MAX_AGE = 24L*60*60*1000;
+	/**
+	 * Maximum size of the node's file cache in bytes
+	 */
+	public static final long LOCAL_CACHE_QUOTA = 20L*1024*1024*1024;
+	/**
+	 * Maximum number of files each map uploads to HDFS at the same time (see
+	 * FileTracker.storeFiles)
+	 */
+	public static final int UPLOAD_THREADS = 4;
+	/**
+	 * Checksums calculated while an input file is copied to local storage (see 
+	 * Tools.copyInputToLocalTemp).  MD5 is used by the FileTracker; others (e.g. SHA1) 
+	 * can be added so they are ready for the job logs without reading the file again
+	 */
+	public static final String[] COPY_CHECKSUM_TYPES = { "MD5" };
+	/**
+	 * Whether local input files are hard linked in to the temporary directories instead of 
+	 * copied, when they are on the same file system (see Tools.stageLocalFile).  A linked
+	 * input is the same file as the original, so this is off by default in case a tool 
+	 * modifies its input files in place (see LINK_LOCAL_INPUTS_CONF_SETTING).
+	 */
+	public static final boolean LINK_LOCAL_INPUTS = false;
+	/**
+	 * Number of ranges of a large HDFS input that are downloaded at the same time (see 
+	 * RangedDownload).  Inputs of one block, or all inputs if this is 1, are downloaded 
+	 * with one stream.
+	 */
+	public static final int DOWNLOAD_THREADS = 4;
+	/**
+	 * Size of the ranges downloaded by RangedDownload if an input's block size is not known
+	 */
+	public static final long DOWNLOAD_RANGE_SIZE = 64L*1024*1024;
+	/**
+	 * Size of the blocks read from a file when it is checksummed (see ChecksumEngine)
+	 */
+	public static final int CHECKSUM_BUFSIZE = 1024*1024;
+	/**
+	 * Extensions of the files that are compressed when outputs are zipped (see 
+	 * Tools.zipGeneratedFiles).  Other files, e.g. jp2 and gz, are already compressed and
+	 * are stored as they are.
+	 */
+	public static final String[] ZIP_DEFLATE_EXTENSIONS = { ".xml", ".log", ".txt", ".psnr", ".diss", ".metrics" };
+	/**
+	 * Largest file that is compressed in memory, in parallel with the other files, when
+	 * outputs are zipped.  Larger files are compressed as they are written to the zip.
+	 */
+	public static final long ZIP_PARALLEL_MAX = 16L*1024*1024;
+	/**
+	 * Most bytes of files being compressed in memory at once, across all the zips being
+	 * written in this JVM.  Files that would go over this are compressed as they are written.
+	 */
+	public static final int ZIP_PARALLEL_BYTES = 64*1024*1024;
 	/**
 	 * Default buffer size to use when copying file data
 	 */
@@ -265,7 +372,7 @@ public final class Settings {
 	 * implementation
 	 */
 	@SuppressWarnings("javadoc")
-	public static enum JobType { CommandLineJob, TavernaCommandLine, TavernaServerJob, XMLCommandLineJob, XMLWorkflowReport };
+	public static enum JobType { CommandLineJob, TavernaCommandLine, TavernaServerJob, XMLCommandLineJob, XMLWorkflowReport, XMLPipelineJob, TrackerGCJob };
 	/**
 	 * Setting key used to pass JobType enum to the Mappers 
 	 */
@@ -274,6 +381,58 @@ public final class Settings {
 	 * XML code for XMLCommandLineJob
 	 */
 	public static final String XMLCODE_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.xmlcode";
+	/**
+	 * Whether an XMLPipelineJob stores the outputs of each stage in HDFS
+	 */
+	public static final String CHECKPOINT_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.checkpoint";
+	/**
+	 * Whether XML tools that run for longer than usual are hedged by running a second copy
+	 */
+	public static final String HEDGE_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.hedge";
+	/**
+	 * Whether speculative execution is enabled, so output files are committed by ChutneyOutputCommitter
+	 */
+	public static final String SPECULATIVE_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.speculative";
+	/**
+	 * Whether FileTrackers store files in one container file per tracker
+	 */
+	public static final String CONTAINER_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.container";
+	/**
+	 * Whether inputs whose content has already been processed by the same job are skipped
+	 */
+	public static final String DEDUP_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.dedup";
+	/**
+	 * Whether files fetched from and stored in FileTrackers are kept in the node's local cache
+	 */
+	public static final String LOCAL_CACHE_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.localcache";
+	/**
+	 * Whether local input files are hard linked in to the temporary directories
+	 */
+	public static final String LINK_LOCAL_INPUTS_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.linklocalinputs";
+	/**
+	 * Replication of intermediate files stored in FileTrackers
+	 */
+	public static final String TRACKER_REPLICATION_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.tracker.replication";
+	/**
+	 * Block size of intermediate files stored in FileTrackers
+	 */
+	public static final String TRACKER_BLOCKSIZE_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.tracker.blocksize";
+	/**
+	 * Number of ranges of a large HDFS input that are downloaded at the same time
+	 */
+	public static final String DOWNLOAD_THREADS_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.downloadthreads";
+	/**
+	 * Time after which a TrackerGCJob deletes unused FileTrackers (ms)
+	 */
+	public static final String GC_TTL_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.gcttl";
+	/**
+	 * Number of input lines given to each map (shared with NLineInputFormat)
+	 */
+	public static final String LINESPERMAP_CONF_SETTING = "mapred.line.input.format.linespermap";
+	/**
+	 * HDFS directory containing .metrics files from previous runs, used to size inputs
+	 */
+	public static final String METRICS_CONF_SETTING = "eu.scape_project.tb.tavernahadoopwrapper.metrics";
 	/**
 	 * HDFS output path for files
 	 */
@@ -290,10 +449,40 @@ public final class Settings {
 	 * The regexp for a hash
 	 */
 	public static final String PATTERN_HASH = "[a-fA-F0-9]{32}";
+	/**
+	 * Prefix of the output directory (inside the job's output directory) of a resumed run
+	 */
+	public static final String RESUME_DIR_PREFIX = "resume-";
+	/**
+	 * Prefix of an input line that tells a map to take its input lines from a queue
+	 */
+	public static final String QUEUE_TOKEN = "QUEUE:";
 	/**
 	 * String replacement for input files in xml code
 	 */
 	public static final String XML_INPUT_REPLACEMENT = "%input%";
+	/**
+	 * Wall clock time limit in seconds for each tool run by a CommandLineJob (0 for no limit).
+	 * XML defined tools set their own limit with &lt;timeout&gt;
+	 */
+	public static final long CLJ_TOOL_TIMEOUT = 0;
+	/**
+	 * Cpu time limit in seconds for each tool run by a CommandLineJob (0 for no limit).
+	 * XML defined tools set their own limit with &lt;cputime&gt;
+	 */
+	public static final long CLJ_TOOL_CPUTIME = 0;
+	/**
+	 * Percentile of a tool's recent run times after which a run is hedged
+	 */
+	public static final double HEDGE_PERCENTILE = 99;
+	/**
+	 * Number of recent run times kept for each tool
+	 */
+	public static final int HEDGE_SAMPLES = 1000;
+	/**
+	 * Number of run times of a tool needed before runs are hedged
+	 */
+	public static final int HEDGE_MIN_SAMPLES = 20;
 	/**
 	 * ActiveMQ server URI
 	 */
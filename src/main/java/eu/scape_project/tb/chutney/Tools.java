@@ -29,17 +29,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -48,7 +63,9 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.HardLink;
 import org.apache.hadoop.fs.Path;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -81,33 +98,15 @@ public class Tools {
 	public static String generateChecksum(String pType, String pInFile) throws IOException {
 
 		if(!new File(pInFile).exists()) throw new IOException("File not found: "+pInFile);
-		
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance(pType.toUpperCase());
-		} catch (NoSuchAlgorithmException e) {
-			return null;
-		}
-		
-		FileInputStream input;
-		try {
-			input = new FileInputStream(pInFile);
-			byte[] readBuffer = new byte[Settings.BUFSIZE];
-			int bytesRead = 0;
-			while(input.available()>0) {
-				bytesRead = input.read(readBuffer);
-				md.update(readBuffer, 0, bytesRead);
-			}
-			input.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
 
-		String hash = "";
-		for(byte b : md.digest()) hash+=String.format("%02x", b);
-		return hash;
+		//use the checksum from the catalog, e.g. calculated when the file was copied
+		File file = new File(pInFile);
+		String checksum = ChecksumCatalog.get(pType, file);
+		if(null!=checksum) return checksum;
+		
+		checksum = ChecksumEngine.checksum(file, pType).get(pType);
+		if(null!=checksum) ChecksumCatalog.record(file, pType, checksum);
+		return checksum;
 	}	
 	
 	/**
@@ -135,7 +134,7 @@ public class Tools {
 		return generateChecksum(type, pInFile);
 		
 	}
-	
+
 	/**
 	 * Generates a checksum for a file and writes it to the log file
 	 * @param pInFile file that has been checksummed
@@ -214,6 +213,141 @@ public class Tools {
 		
 	}
 	
+	/**
+	 * Thread used to kill processes that run for too long (see waitForProcess)
+	 */
+	private static final ScheduledExecutorService gWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable pRunnable) {
+			Thread thread = new Thread(pRunnable, "process-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Wait for a process to finish, killing it if it runs for longer than the timeout
+	 * @param pProcess process to wait for
+	 * @param pTimeout wall clock time limit in seconds (0 for no limit)
+	 * @return true if the process finished by itself, false if it was killed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static boolean waitForProcess(final Process pProcess, long pTimeout) throws InterruptedException {
+		if(pTimeout<=0) {
+			pProcess.waitFor();
+			return true;
+		}
+		final AtomicBoolean killed = new AtomicBoolean(false);
+		ScheduledFuture<?> kill = gWatchdog.schedule(new Runnable() {
+			public void run() {
+				try {
+					//throws if the process is still running
+					pProcess.exitValue();
+				} catch(IllegalThreadStateException e) {
+					killed.set(true);
+					killProcess(pProcess);
+				}
+			}
+		}, pTimeout, TimeUnit.SECONDS);
+		pProcess.waitFor();
+		kill.cancel(false);
+		return !killed.get();
+	}
+
+	/**
+	 * Wrap a command line so the process runs in its own process group (using setsid), so
+	 * that killProcess also kills anything it starts - e.g. the tools run by a shell script
+	 * @param pCommandLine command line to run
+	 * @return command line to run
+	 */
+	public static List<String> inProcessGroup(List<String> pCommandLine) {
+		List<String> commandLine = new ArrayList<String>();
+		//the process started by java is not a group leader, so setsid execs the command 
+		//in the same process and the group id is the process id
+		commandLine.add(Settings.SETSID);
+		commandLine.addAll(pCommandLine);
+		return commandLine;
+	}
+
+	/**
+	 * Kill a process and, if it was started with inProcessGroup, the processes it started
+	 * @param pProcess process to kill
+	 */
+	public static void killProcess(Process pProcess) {
+		int pid = getPid(pProcess);
+		if(pid>0) {
+			runQuietly("kill", "-KILL", "--", "-"+pid);
+		}
+		pProcess.destroy();
+	}
+
+	/**
+	 * Get the operating system's id for a process
+	 * @param pProcess process
+	 * @return the process id, or -1 if it is not available
+	 */
+	private static int getPid(Process pProcess) {
+		try {
+			//java 9 and later
+			return ((Number)Process.class.getMethod("pid").invoke(pProcess)).intValue();
+		} catch(Exception e) {
+			//fall through to the field of earlier versions
+		}
+		try {
+			Field field = pProcess.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return field.getInt(pProcess);
+		} catch(Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Wrap a command line so the process is limited to an amount of cpu time (using the 
+	 * shell's ulimit), after which it is killed by the operating system
+	 * @param pCommandLine command line to run
+	 * @param pCpuTime cpu time limit in seconds (0 for no limit)
+	 * @return command line to run
+	 */
+	public static List<String> limitCpuTime(List<String> pCommandLine, long pCpuTime) {
+		if(pCpuTime<=0) return pCommandLine;
+		List<String> commandLine = new ArrayList<String>();
+		commandLine.add("/bin/sh");
+		commandLine.add("-c");
+		//exec so the tool replaces the shell (and is what gets killed on timeout)
+		commandLine.add("ulimit -t "+pCpuTime+"; exec \"$0\" \"$@\"");
+		commandLine.addAll(pCommandLine);
+		return commandLine;
+	}
+
+	/**
+	 * Append information about a process that was killed for running too long to a log file
+	 * @param pTimeout wall clock time limit in seconds
+	 * @param pLogFile log file to write to 
+	 * @throws IOException file access error
+	 */
+	public static void appendTimeoutToLog(long pTimeout, BufferedWriter pLogFile) throws IOException {
+		pLogFile.write("ERROR: TIMEOUT: process killed after "+pTimeout+" seconds\n");
+	}
+
+	/**
+	 * Directories that local files can't be linked from in to the temporary directories 
+	 * (see stageLocalFile), so it is not tried for every file
+	 */
+	private static final Set<String> gNoLinkDirs = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Whether local input files are hard linked (see Settings.LINK_LOCAL_INPUTS)
+	 */
+	private static boolean gLinkLocalInputs = Settings.LINK_LOCAL_INPUTS;
+
+	/**
+	 * Set whether local input files are hard linked in to the temporary directories
+	 * @param pLink true to hard link local input files
+	 */
+	public static void setLinkLocalInputs(boolean pLink) {
+		gLinkLocalInputs = pLink;
+	}
+
 	/**
 	 * Creates a new temporary directory 
 	 * @return File object for new directory
@@ -276,23 +410,19 @@ public class Tools {
 		//i.e. this file is a local file
 		if(new File(pInputFile).exists()) {
 		//	System.out.println("copying from local fs");
-			FileInputStream fis = new FileInputStream(pInputFile);
-			FileOutputStream fos = new FileOutputStream(tempInputFile);
-			byte[] buffer = new byte[Settings.BUFSIZE];
-			int bytesRead = 0;
-			while(fis.available()>0) {
-				bytesRead = fis.read(buffer);
-				fos.write(buffer, 0, bytesRead);
-			}
-			fis.close();
-			fos.close();
+			stageLocalFile(new File(pInputFile), tempInputFile);
 			return tempInputFile;
 		}
 		//this file is in HDFS
 		if(pFs.exists(new Path(pInputFile))) {
 		//	System.out.println("copying from hdfs");
-			pFs.copyToLocalFile(new Path(pInputFile), new Path(tempFile));
-			tempInputFile = new File(tempFile);
+			FileStatus status = pFs.getFileStatus(new Path(pInputFile));
+			if(RangedDownload.isWorthwhile(status)) {
+				//large files are read from several datanodes at once
+				RangedDownload.download(pFs, status, tempInputFile);
+			} else {
+				copyAndDigest(pFs.open(new Path(pInputFile)), tempInputFile);
+			}
 			return tempInputFile;
 		}
 		//TODO: check for HTTP files etc
@@ -302,9 +432,179 @@ public class Tools {
 	}
 	
 	/**
-	 * Convenience method to zip the generated files together (no compression)
+	 * Put a local file in a temporary directory without copying it through the Java heap.
+	 * The file is hard linked (if enabled, see setLinkLocalInputs) or reflinked where the 
+	 * file system allows it, otherwise it is copied with FileChannel.transferTo.  Checksums
+	 * of the file in the ChecksumCatalog are kept for the new file, but none are calculated.
+	 * @param pFrom file to stage
+	 * @param pTo new file
+	 * @throws IOException file access error
+	 */
+	public static void stageLocalFile(File pFrom, File pTo) throws IOException {
+		stageLocalFile(pFrom, pTo, gLinkLocalInputs);
+	}
+
+	/**
+	 * Put a local file in a temporary directory (see stageLocalFile(File, File))
+	 * @param pFrom file to stage
+	 * @param pTo new file
+	 * @param pLink true to try a hard link first
+	 * @throws IOException file access error
+	 */
+	private static void stageLocalFile(File pFrom, File pTo, boolean pLink) throws IOException {
+		String dir = pFrom.getAbsoluteFile().getParent();
+		if(!gNoLinkDirs.contains(dir)) {
+			if(pLink) {
+				try {
+					HardLink.createHardLink(pFrom, pTo);
+					ChecksumCatalog.copy(pFrom, pTo);
+					return;
+				} catch (IOException e) {
+					//try a reflink
+				}
+			}
+			pTo.delete();
+			if(runQuietly("cp", "--reflink=always", pFrom.getAbsolutePath(), pTo.getAbsolutePath())) {
+				ChecksumCatalog.copy(pFrom, pTo);
+				return;
+			}
+			pTo.delete();
+			//e.g. a different file system, don't try again for files from here
+			gNoLinkDirs.add(dir);
+		}
+		transferFile(pFrom, pTo);
+		ChecksumCatalog.copy(pFrom, pTo);
+	}
+
+	/**
+	 * Move a local file, to another file system if needed (where File.renameTo fails)
+	 * @param pFrom file to move
+	 * @param pTo new name
+	 * @return true if the file was moved
+	 */
+	public static boolean moveFile(File pFrom, File pTo) {
+		if(pFrom.renameTo(pTo)) return true;
+		if(!pFrom.exists()) return false;
+		try {
+			//the original is deleted, so it can't be changed through the link
+			stageLocalFile(pFrom, pTo, true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			pTo.delete();
+			return false;
+		}
+		return pFrom.delete();
+	}
+
+	/**
+	 * Copy a local file with FileChannel.transferTo, so the kernel copies the data
+	 * @param pFrom file to copy
+	 * @param pTo new file (overwritten if it exists)
+	 * @throws IOException file access error
+	 */
+	private static void transferFile(File pFrom, File pTo) throws IOException {
+		FileInputStream input = new FileInputStream(pFrom);
+		FileOutputStream output = new FileOutputStream(pTo);
+		try {
+			FileChannel in = input.getChannel();
+			FileChannel out = output.getChannel();
+			long size = in.size();
+			long position = 0;
+			while(position<size) {
+				position += in.transferTo(position, size-position, out);
+			}
+		} finally {
+			input.close();
+			output.close();
+		}
+	}
+
+	/**
+	 * Run a short command, discarding its output
+	 * @param pCommandLine command and arguments
+	 * @return true if the command ran and exited with 0
+	 */
+	private static boolean runQuietly(String... pCommandLine) {
+		try {
+			ProcessBuilder pb = new ProcessBuilder(pCommandLine);
+			pb.redirectErrorStream(true);
+			Process process = pb.start();
+			InputStream output = process.getInputStream();
+			byte[] buffer = new byte[1024];
+			while(output.read(buffer)>=0) {}
+			output.close();
+			return process.waitFor()==0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Copy a stream to a local file, calculating the checksums in Settings.COPY_CHECKSUM_TYPES
+	 * as it is written so the file does not have to be read again (see ChecksumCatalog)
+	 * @param pInput stream to copy (closed when done)
+	 * @param pOutput local file to write
+	 * @throws IOException file access error
+	 */
+	private static void copyAndDigest(InputStream pInput, File pOutput) throws IOException {
+		List<MessageDigest> digests = new ArrayList<MessageDigest>();
+		for(String type:Settings.COPY_CHECKSUM_TYPES) {
+			try {
+				digests.add(MessageDigest.getInstance(type.toUpperCase()));
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+			}
+		}
+		FileOutputStream output = new FileOutputStream(pOutput);
+		byte[] buffer = new byte[Settings.BUFSIZE];
+		try {
+			int bytesRead = pInput.read(buffer);
+			while(bytesRead>=0) {
+				output.write(buffer, 0, bytesRead);
+				for(MessageDigest md:digests) {
+					md.update(buffer, 0, bytesRead);
+				}
+				bytesRead = pInput.read(buffer);
+			}
+		} finally {
+			pInput.close();
+			output.close();
+		}
+		List<String> checksums = new ArrayList<String>();
+		for(MessageDigest md:digests) {
+			checksums.add(md.getAlgorithm()+":"+ChecksumEngine.toHex(md.digest()));
+		}
+		ChecksumCatalog.record(pOutput, checksums);
+	}
+
+	/**
+	 * Threads used to compress files for zipGeneratedFiles, shared by all the zips being
+	 * written in this JVM (e.g. by the threads of a MultithreadedMapRunner)
+	 */
+	private static final ExecutorService gZipPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		public Thread newThread(Runnable pRunnable) {
+			Thread thread = new Thread(pRunnable, "zip-deflate");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Bytes that may still be compressed in memory by gZipPool (see Settings.ZIP_PARALLEL_BYTES)
+	 */
+	private static final Semaphore gZipBytes = new Semaphore(Settings.ZIP_PARALLEL_BYTES);
+
+	/**
+	 * Convenience method to zip the generated files together.  Each file is read once; 
+	 * text files (see Settings.ZIP_DEFLATE_EXTENSIONS) are compressed, on several threads, 
+	 * and other files (e.g. jp2, gz) are stored uncompressed.  Checksums for the manifest
+	 * that are not given, or in the ChecksumCatalog, are calculated as the files are zipped.
 	 * @param pSuccess whether workflow was successful or not
-	 * @param pChecksums checksums for all files to be zipped
+	 * @param pChecksums checksums (e.g. MD5:xxxx) for all files to be listed in the manifest, 
+	 * null where the checksum is not known
 	 * @param pGeneratedFiles list of files to be zipped
 	 * @param pZipFile output zip file
 	 * @param pTempDir local temporary directory that contains files to zip 
@@ -314,112 +614,137 @@ public class Tools {
 			List<String> pGeneratedFiles, String pZipFile, String pTempDir) throws IOException {
 		
 		System.out.println("zipGeneratedFiles("+pZipFile+" ...)");
-		
-		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(pZipFile));
 
-		int compression = ZipEntry.STORED;
-		
-		//add an empty file indicating success or failure
-		ZipEntry status;
-		if(pSuccess) status = new ZipEntry("SUCCESS");
-		else status = new ZipEntry("FAILURE");
-		status.setSize(0);
-		status.setTime(0);
-		status.setMethod(compression);
-		status.setCrc(0);
-		zip.putNextEntry(status);
-		zip.closeEntry();
-		
-		//generate a manifest file and write it to the zip as the first entry
-		ZipEntry manifest = new ZipEntry("manifest-md5.txt");
-		manifest.setTime(0);
-		manifest.setMethod(compression);
-		CRC32 crc = new CRC32();
-		long size = 0;
+		//find the checksums for the manifest that we already know
+		Map<String, String> manifestChecksums = new HashMap<String, String>();
+		Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
 		for(String file : pChecksums.keySet()) {
 			//nasty hack
 			if(file.endsWith(".report.xml")) continue;
 			
-			//String fn = new File(file).getName();
 			//only add the file if it exists!
-			if(new File(pTempDir+file).exists()) {
-				String out = pChecksums.get(file).split(":")[1]+"  data/"+file+"\n";
-				size+=out.getBytes().length;
-				crc.update(out.getBytes());
+			File input = new File(pTempDir+file);
+			if(!input.exists()) continue;
+			
+			String checksum = pChecksums.get(file);
+			if(null==checksum) {
+				String md5 = ChecksumCatalog.get("MD5", input);
+				if(null!=md5) checksum = "MD5:"+md5;
+			}
+			if(null!=checksum) {
+				manifestChecksums.put(file, checksum.split(":")[1]);
+			} else {
+				try {
+					digests.put(file, MessageDigest.getInstance("MD5"));
+				} catch (NoSuchAlgorithmException e) {
+					throw new IOException("MD5 not available");
+				}
 			}
 		}
-		manifest.setCrc(crc.getValue());
-		manifest.setSize(size);
-		zip.putNextEntry(manifest);
-		for(String file : pChecksums.keySet()) {
-			//nasty hack
-			if(file.endsWith(".report.xml")) continue;
 
-			//String fn = new File(file).getName();
-			
-			//THIS MUST MATCH THE ABOVE STRING EXACTLY!
-			//only add the file if it exists!
-			if(new File(pTempDir+file).exists()) {
-				String out = pChecksums.get(file).split(":")[1]+"  data/"+file+"\n";
-				zip.write(out.getBytes());
-			}
+		//start compressing the text files while the other files are written, as long as
+		//the compressed data held in memory stays under Settings.ZIP_PARALLEL_BYTES
+		Map<String, Future<ZipWriter.Deflated>> deflated = new HashMap<String, Future<ZipWriter.Deflated>>();
+		Map<String, Integer> reserved = new HashMap<String, Integer>();
+		for(String file : pGeneratedFiles) {
+			final File input = new File(pTempDir+file);
+			if(!input.exists()||!isCompressible(file)||input.length()>Settings.ZIP_PARALLEL_MAX) continue;
+			if(deflated.containsKey(file)) continue;
+			//never wait for bytes here: they are only released as this zip is written
+			int bytes = (int)input.length();
+			if(!gZipBytes.tryAcquire(bytes)) continue;
+			reserved.put(file, bytes);
+			final MessageDigest digest = digests.get(file);
+			deflated.put(file, gZipPool.submit(new Callable<ZipWriter.Deflated>() {
+				public ZipWriter.Deflated call() throws IOException {
+					return ZipWriter.deflate(input, digest);
+				}
+			}));
 		}
-		zip.closeEntry();
 		
-		//copy all the files in
-		for(String file : pGeneratedFiles) {
-			//add file to zip
-			File input = new File(pTempDir+file);
-			
-			//file does not exist - obvious error condition but continue anyhow
-			if(!input.exists()) continue;
-			
-			FileInputStream inData = new FileInputStream(input);
-			ZipEntry entry;
-			//hack to shorten report and log file names
-			if(file.endsWith(".report.xml")) {
-				entry = new ZipEntry("report.xml");
-			/* } else if(file.endsWith(".log")) {
-				entry = new ZipEntry("log.txt"); */
-			} else {
-				String fn = new File(file).getName();
+		ZipWriter zip = new ZipWriter(pZipFile);
+		try {
+			//add an empty file indicating success or failure
+			zip.addBytes(pSuccess?"SUCCESS":"FAILURE", new byte[0], 0);
 
-				entry = new ZipEntry("data/"+fn);
+			//copy all the files in
+			for(String file : pGeneratedFiles) {
+				//add file to zip
+				File input = new File(pTempDir+file);
+				
+				//file does not exist - obvious error condition but continue anyhow
+				if(!input.exists()) continue;
+				
+				String name;
+				//hack to shorten report and log file names
+				if(file.endsWith(".report.xml")) {
+					name = "report.xml";
+				/* } else if(file.endsWith(".log")) {
+					name = "log.txt"; */
+				} else {
+					name = "data/"+new File(file).getName();
+				}
+				
+				System.out.println(name);
+
+				//each digest is only updated the first time its file is zipped
+				MessageDigest digest = digests.get(file);
+				if(null!=digest&&!manifestChecksums.containsKey(file)) {
+					manifestChecksums.put(file, null);
+				} else {
+					digest = null;
+				}
+				if(deflated.containsKey(file)) {
+					try {
+						zip.addDeflated(name, deflated.remove(file).get(), input.lastModified());
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted compressing "+file);
+					} catch (ExecutionException e) {
+						throw new IOException("Error compressing "+file+": "+e.getCause());
+					} finally {
+						gZipBytes.release(reserved.remove(file));
+					}
+				} else {
+					zip.addFile(name, input, isCompressible(file), digest);
+				}
 			}
 			
-			System.out.println(entry.getName());
-			
-			entry.setSize(input.length());
-			entry.setTime(input.lastModified());
-			entry.setMethod(compression);
-
-			//there has to be a better way to generate the CRC than this!
-			crc = new CRC32();
-			byte[] readBuffer = new byte[Settings.BUFSIZE];
-			int bytesRead = 0;
-			while(inData.available()>0) {
-				bytesRead = inData.read(readBuffer);
-				crc.update(readBuffer, 0, bytesRead);
+			//generate a manifest file and write it to the zip
+			StringBuilder manifest = new StringBuilder();
+			for(String file : pChecksums.keySet()) {
+				if(!manifestChecksums.containsKey(file)&&!digests.containsKey(file)) continue;
+				String checksum = manifestChecksums.get(file);
+				if(null==checksum) {
+					if(manifestChecksums.containsKey(file)) {
+						checksum = ChecksumEngine.toHex(digests.get(file).digest());
+					} else {
+						//listed in the manifest but not zipped
+						checksum = generateChecksum("MD5", pTempDir+file);
+					}
+				}
+				manifest.append(checksum+"  data/"+file+"\n");
 			}
-			entry.setCrc(crc.getValue());
-			//reset inData, again there has to be a better way
-			inData.close();
-			inData = new FileInputStream(input);
-			
-			zip.putNextEntry(entry);			
-
-			readBuffer = new byte[Settings.BUFSIZE];
-			bytesRead = 0;
-			while(inData.available()>0) {
-				bytesRead = inData.read(readBuffer);
-				zip.write(readBuffer, 0, bytesRead);
+			zip.addBytes("manifest-md5.txt", manifest.toString().getBytes(), 0);
+		} finally {
+			zip.close();
+			//files not written because of an error
+			for(String file : deflated.keySet()) {
+				deflated.get(file).cancel(false);
+				gZipBytes.release(reserved.get(file));
 			}
-			
-			inData.close();
-			zip.closeEntry();
 		}
-		
-		zip.close();
+	}
+
+	/**
+	 * Whether a file should be compressed when it is zipped
+	 * @param pFile file name
+	 * @return true if the file name ends with one of Settings.ZIP_DEFLATE_EXTENSIONS
+	 */
+	private static boolean isCompressible(String pFile) {
+		for(String ext:Settings.ZIP_DEFLATE_EXTENSIONS) {
+			if(pFile.toLowerCase().endsWith(ext)) return true;
+		}
+		return false;
 	}
 	
 	/**
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file reading each input file only once.  ZipOutputStream needs the CRC of a
+ * STORED entry before the entry is written, which means reading the file twice; this class
+ * writes the local header with a blank CRC, calculates the CRC as the data is copied and
+ * fills the CRC (and compressed size) in to the local headers when the zip is closed.
+ *
+ * DEFLATE entries can also be compressed in advance (see deflate) so that several files
+ * can be compressed at the same time.  A MessageDigest can be updated from the same read
+ * so the checksum of a file for a manifest is calculated as it is zipped.
+ *
+ * Entries over 4GB (zip64) are not supported.
+ * @author wpalmer
+ *
+ */
+public class ZipWriter {
+
+	/**
+	 * Data for a DEFLATE entry that has been compressed in advance
+	 */
+	public static class Deflated {
+		/**
+		 * Compressed data
+		 */
+		private byte[] gData;
+		/**
+		 * CRC of the uncompressed data
+		 */
+		private long gCrc;
+		/**
+		 * Size of the uncompressed data
+		 */
+		private long gSize;
+	}
+
+	/**
+	 * An entry that has been written, for the central directory
+	 */
+	private static class Entry {
+		/**
+		 * Name (UTF-8)
+		 */
+		private byte[] gName;
+		/**
+		 * General purpose flags
+		 */
+		private int gFlags;
+		/**
+		 * Compression method (STORED or Deflater.DEFLATED)
+		 */
+		private int gMethod;
+		/**
+		 * Modification time (MS-DOS format)
+		 */
+		private long gDosTime;
+		/**
+		 * CRC of the uncompressed data
+		 */
+		private long gCrc;
+		/**
+		 * Size of the data in the zip
+		 */
+		private long gCompressedSize;
+		/**
+		 * Size of the uncompressed data
+		 */
+		private long gSize;
+		/**
+		 * Offset of the local header in the zip
+		 */
+		private long gOffset;
+	}
+
+	/**
+	 * Compression method for uncompressed entries
+	 */
+	private static final int STORED = 0;
+	/**
+	 * Signature of a local header
+	 */
+	private static final long LOCAL_HEADER_SIG = 0x04034b50L;
+	/**
+	 * Signature of a central directory header
+	 */
+	private static final long CENTRAL_HEADER_SIG = 0x02014b50L;
+	/**
+	 * Signature of the end of central directory record
+	 */
+	private static final long END_SIG = 0x06054b50L;
+	/**
+	 * Version needed to extract (2.0, for DEFLATE)
+	 */
+	private static final int VERSION = 20;
+	/**
+	 * General purpose flag for UTF-8 names
+	 */
+	private static final int FLAG_UTF8 = 0x800;
+	/**
+	 * Offset of the CRC in a local header
+	 */
+	private static final int CRC_OFFSET = 14;
+	/**
+	 * Largest entry size or offset without zip64
+	 */
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+	/**
+	 * Name of the zip file
+	 */
+	private String gZipFile;
+	/**
+	 * Stream to the zip file
+	 */
+	private OutputStream gOut;
+	/**
+	 * Number of bytes written so far
+	 */
+	private long gWritten = 0;
+	/**
+	 * Entries written so far
+	 */
+	private List<Entry> gEntries = new ArrayList<Entry>();
+
+	/**
+	 * Create a new zip file
+	 * @param pZipFile zip file to write (overwritten if it exists)
+	 * @throws IOException file access error
+	 */
+	public ZipWriter(String pZipFile) throws IOException {
+		gZipFile = pZipFile;
+		gOut = new BufferedOutputStream(new FileOutputStream(pZipFile), Settings.BUFSIZE*4);
+	}
+
+	/**
+	 * Add a STORED entry from memory
+	 * @param pName name of the entry
+	 * @param pData data
+	 * @param pTime modification time
+	 * @throws IOException file access error
+	 */
+	public void addBytes(String pName, byte[] pData, long pTime) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(pData);
+		Entry entry = newEntry(pName, STORED, pTime);
+		entry.gCrc = crc.getValue();
+		entry.gSize = pData.length;
+		entry.gCompressedSize = pData.length;
+		writeLocalHeader(entry);
+		write(pData, 0, pData.length);
+	}
+
+	/**
+	 * Add a file, reading it once
+	 * @param pName name of the entry
+	 * @param pFile file to add
+	 * @param pDeflate whether to compress the file (DEFLATE) or not (STORED)
+	 * @param pDigest updated with the file's data, or null
+	 * @throws IOException file access error
+	 */
+	public void addFile(String pName, File pFile, boolean pDeflate, MessageDigest pDigest) throws IOException {
+		if(pFile.length()>=MAX_SIZE) throw new IOException("File too large to zip: "+pFile);
+		Entry entry = newEntry(pName, pDeflate?Deflater.DEFLATED:STORED, pFile.lastModified());
+		entry.gSize = pFile.length();
+		//the crc (and compressed size) is filled in when the zip is closed
+		writeLocalHeader(entry);
+		CRC32 crc = new CRC32();
+		InputStream input = new FileInputStream(pFile);
+		try {
+			if(pDeflate) {
+				long start = gWritten;
+				deflate(input, new OutputStream() {
+					@Override
+					public void write(int pByte) throws IOException {
+						ZipWriter.this.write(new byte[] { (byte)pByte }, 0, 1);
+					}
+					@Override
+					public void write(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+						ZipWriter.this.write(pBuffer, pOffset, pLength);
+					}
+				}, crc, pDigest);
+				entry.gCompressedSize = gWritten-start;
+			} else {
+				byte[] buffer = new byte[Settings.BUFSIZE];
+				int bytesRead = input.read(buffer);
+				while(bytesRead>=0) {
+					write(buffer, 0, bytesRead);
+					crc.update(buffer, 0, bytesRead);
+					if(null!=pDigest) pDigest.update(buffer, 0, bytesRead);
+					bytesRead = input.read(buffer);
+				}
+				entry.gCompressedSize = entry.gSize;
+			}
+		} finally {
+			input.close();
+		}
+		entry.gCrc = crc.getValue();
+	}
+
+	/**
+	 * Add a DEFLATE entry that has already been compressed (see deflate)
+	 * @param pName name of the entry
+	 * @param pData compressed data
+	 * @param pTime modification time
+	 * @throws IOException file access error
+	 */
+	public void addDeflated(String pName, Deflated pData, long pTime) throws IOException {
+		Entry entry = newEntry(pName, Deflater.DEFLATED, pTime);
+		entry.gCrc = pData.gCrc;
+		entry.gSize = pData.gSize;
+		entry.gCompressedSize = pData.gData.length;
+		writeLocalHeader(entry);
+		write(pData.gData, 0, pData.gData.length);
+	}
+
+	/**
+	 * Compress a file in to memory, for addDeflated.  This can be called from several
+	 * threads at once.
+	 * @param pFile file to compress
+	 * @param pDigest updated with the file's data, or null
+	 * @return compressed data
+	 * @throws IOException file access error
+	 */
+	public static Deflated deflate(File pFile, MessageDigest pDigest) throws IOException {
+		Deflated deflated = new Deflated();
+		ByteArrayOutputStream output = new ByteArrayOutputStream((int)Math.min(pFile.length(), Integer.MAX_VALUE)/4+64);
+		CRC32 crc = new CRC32();
+		InputStream input = new FileInputStream(pFile);
+		try {
+			deflated.gSize = deflate(input, output, crc, pDigest);
+		} finally {
+			input.close();
+		}
+		deflated.gData = output.toByteArray();
+		deflated.gCrc = crc.getValue();
+		return deflated;
+	}
+
+	/**
+	 * Compress a stream (raw DEFLATE, as used in zip files)
+	 * @param pInput data to compress
+	 * @param pOutput stream to write the compressed data to
+	 * @param pCrc updated with the uncompressed data
+	 * @param pDigest updated with the uncompressed data, or null
+	 * @return size of the uncompressed data
+	 * @throws IOException file access error
+	 */
+	private static long deflate(InputStream pInput, OutputStream pOutput, CRC32 pCrc, MessageDigest pDigest) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		byte[] buffer = new byte[Settings.BUFSIZE];
+		byte[] compressed = new byte[Settings.BUFSIZE];
+		long size = 0;
+		try {
+			int bytesRead = pInput.read(buffer);
+			while(bytesRead>=0) {
+				pCrc.update(buffer, 0, bytesRead);
+				if(null!=pDigest) pDigest.update(buffer, 0, bytesRead);
+				size += bytesRead;
+				deflater.setInput(buffer, 0, bytesRead);
+				while(!deflater.needsInput()) {
+					int length = deflater.deflate(compressed);
+					pOutput.write(compressed, 0, length);
+				}
+				bytesRead = pInput.read(buffer);
+			}
+			deflater.finish();
+			while(!deflater.finished()) {
+				int length = deflater.deflate(compressed);
+				pOutput.write(compressed, 0, length);
+			}
+		} finally {
+			deflater.end();
+		}
+		return size;
+	}
+
+	/**
+	 * Write the central directory, close the zip and fill in the CRCs and compressed sizes
+	 * in the local headers
+	 * @throws IOException file access error
+	 */
+	public void close() throws IOException {
+		long centralStart = gWritten;
+		for(Entry entry:gEntries) {
+			if(entry.gCompressedSize>=MAX_SIZE||entry.gOffset>=MAX_SIZE) {
+				gOut.close();
+				throw new IOException("Zip too large: "+gZipFile);
+			}
+			writeInt(CENTRAL_HEADER_SIG);
+			writeShort(VERSION);
+			writeShort(VERSION);
+			writeShort(entry.gFlags);
+			writeShort(entry.gMethod);
+			writeInt(entry.gDosTime);
+			writeInt(entry.gCrc);
+			writeInt(entry.gCompressedSize);
+			writeInt(entry.gSize);
+			writeShort(entry.gName.length);
+			writeShort(0);//extra field length
+			writeShort(0);//comment length
+			writeShort(0);//disk number
+			writeShort(0);//internal attributes
+			writeInt(0);//external attributes
+			writeInt(entry.gOffset);
+			write(entry.gName, 0, entry.gName.length);
+		}
+		long centralSize = gWritten-centralStart;
+		writeInt(END_SIG);
+		writeShort(0);//disk number
+		writeShort(0);//disk with the central directory
+		writeShort(gEntries.size());
+		writeShort(gEntries.size());
+		writeInt(centralSize);
+		writeInt(centralStart);
+		writeShort(0);//comment length
+		gOut.close();
+
+		//fill in the values that weren't known when the local headers were written
+		RandomAccessFile zip = new RandomAccessFile(gZipFile, "rw");
+		try {
+			byte[] values = new byte[12];
+			for(Entry entry:gEntries) {
+				putInt(values, 0, entry.gCrc);
+				putInt(values, 4, entry.gCompressedSize);
+				putInt(values, 8, entry.gSize);
+				zip.seek(entry.gOffset+CRC_OFFSET);
+				zip.write(values);
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Start a new entry
+	 * @param pName name of the entry
+	 * @param pMethod compression method
+	 * @param pTime modification time
+	 * @return the entry
+	 * @throws IOException if there are too many entries
+	 */
+	private Entry newEntry(String pName, int pMethod, long pTime) throws IOException {
+		if(gEntries.size()>=0xFFFF) throw new IOException("Too many entries for zip: "+gZipFile);
+		Entry entry = new Entry();
+		entry.gName = pName.getBytes("UTF-8");
+		//only set the UTF-8 flag if it is needed, as ZipOutputStream does
+		entry.gFlags = (entry.gName.length==pName.length())?0:FLAG_UTF8;
+		entry.gMethod = pMethod;
+		entry.gDosTime = toDosTime(pTime);
+		entry.gOffset = gWritten;
+		gEntries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Write the local header for an entry
+	 * @param pEntry entry
+	 * @throws IOException file access error
+	 */
+	private void writeLocalHeader(Entry pEntry) throws IOException {
+		writeInt(LOCAL_HEADER_SIG);
+		writeShort(VERSION);
+		writeShort(pEntry.gFlags);
+		writeShort(pEntry.gMethod);
+		writeInt(pEntry.gDosTime);
+		writeInt(pEntry.gCrc);
+		writeInt(pEntry.gCompressedSize);
+		writeInt(pEntry.gSize);
+		writeShort(pEntry.gName.length);
+		writeShort(0);//extra field length
+		write(pEntry.gName, 0, pEntry.gName.length);
+	}
+
+	/**
+	 * Convert a time to MS-DOS date and time (as ZipEntry does)
+	 * @param pTime java time
+	 * @return MS-DOS date (high 16 bits) and time (low 16 bits)
+	 */
+	private static long toDosTime(long pTime) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(pTime);
+		int year = calendar.get(Calendar.YEAR);
+		if(year<1980) return (1<<21)|(1<<16);
+		return ((long)(year-1980)<<25)|((calendar.get(Calendar.MONTH)+1)<<21)|
+				(calendar.get(Calendar.DAY_OF_MONTH)<<16)|(calendar.get(Calendar.HOUR_OF_DAY)<<11)|
+				(calendar.get(Calendar.MINUTE)<<5)|(calendar.get(Calendar.SECOND)>>1);
+	}
+
+	/**
+	 * Write to the zip, counting the bytes written
+	 * @param pBuffer data
+	 * @param pOffset offset of the data in pBuffer
+	 * @param pLength length of the data
+	 * @throws IOException file access error
+	 */
+	private void write(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+		gOut.write(pBuffer, pOffset, pLength);
+		gWritten += pLength;
+	}
+
+	/**
+	 * Write a little endian 16 bit value
+	 * @param pValue value
+	 * @throws IOException file access error
+	 */
+	private void writeShort(int pValue) throws IOException {
+		write(new byte[] { (byte)pValue, (byte)(pValue>>8) }, 0, 2);
+	}
+
+	/**
+	 * Write a little endian 32 bit value
+	 * @param pValue value
+	 * @throws IOException file access error
+	 */
+	private void writeInt(long pValue) throws IOException {
+		byte[] value = new byte[4];
+		putInt(value, 0, pValue);
+		write(value, 0, 4);
+	}
+
+	/**
+	 * Put a little endian 32 bit value in to a buffer
+	 * @param pBuffer buffer
+	 * @param pOffset offset in the buffer
+	 * @param pValue value
+	 */
+	private static void putInt(byte[] pBuffer, int pOffset, long pValue) {
+		pBuffer[pOffset] = (byte)pValue;
+		pBuffer[pOffset+1] = (byte)(pValue>>8);
+		pBuffer[pOffset+2] = (byte)(pValue>>16);
+		pBuffer[pOffset+3] = (byte)(pValue>>24);
+	}
+
+}
@@ -24,6 +24,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import uk.bl.dpt.fclib.FedoraDataConnector;
+import eu.scape_project.tb.chutney.ChutneyOutputCommitter;
 
 /**
  * Implement a Fedora Commons file system (note log files go to HDFS)
@@ -37,6 +38,11 @@ public class FedoraFS implements ChutneyFS {
 	//private String fedoraFilename;
 	private FileSystem gFs = null;
 	private String gHdfsOutputDir = null;
+	private String gHdfsWriteDir = null;
+	/**
+	 * Whether datastreams must be claimed before they are posted (see ChutneyOutputCommitter)
+	 */
+	private boolean gClaim = false;
 	
 	/**
 	 * Initialise FedoraFS
@@ -47,6 +53,21 @@ public class FedoraFS implements ChutneyFS {
 		//to save log files
 		gFs = pFS;
 		gHdfsOutputDir = pHdfsOutputDir;
+		gHdfsWriteDir = pHdfsOutputDir;
+	}
+
+	/**
+	 * Initialise FedoraFS for a task attempt that may run alongside a speculative attempt.
+	 * HDFS files are written to a staging directory that is moved to the output directory
+	 * when the task is committed, and only the first attempt posts each datastream.
+	 * @param pFS HDFS file system (for log files)
+	 * @param pHdfsOutputDir HDFS output directory (for log files)
+	 * @param pHdfsStagingDir HDFS directory to write files to
+	 */
+	public FedoraFS(FileSystem pFS, String pHdfsOutputDir, String pHdfsStagingDir) {
+		this(pFS, pHdfsOutputDir);
+		gHdfsWriteDir = pHdfsStagingDir;
+		gClaim = true;
 	}
 	
 	@Override
@@ -62,13 +83,15 @@ public class FedoraFS implements ChutneyFS {
 	@Override
 	public String putFile(boolean pSuccess, File pFrom, String pTo, String pDatastream, String pMessage, String pMimetype, boolean pOverwrite) {
 		if(pSuccess) {
-			FedoraDataConnector.postDatastream(gFedoraPid, pDatastream, pFrom, pMessage, pMimetype);
+			if(!gClaim||ChutneyOutputCommitter.claim(gFs, gHdfsOutputDir, gHdfsWriteDir, gFedoraPid+"-"+pDatastream)) {
+				FedoraDataConnector.postDatastream(gFedoraPid, pDatastream, pFrom, pMessage, pMimetype);
+			}
 			return FedoraDataConnector.DC_URI+gFedoraPid+":"+pDatastream;
 		} else {
 			//don't put an unsuccessful result in to the repository!
 			Path dest = new Path(gHdfsOutputDir+pTo);
 			try {
-				gFs.copyFromLocalFile(new Path(pFrom.getAbsolutePath()), dest);
+				gFs.copyFromLocalFile(new Path(pFrom.getAbsolutePath()), new Path(gHdfsWriteDir+pTo));
 				return dest.toString();
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
@@ -89,7 +112,7 @@ public class FedoraFS implements ChutneyFS {
 	@Override
 	public void saveLogFile(File pLogFile) {
 		try {
-			gFs.copyFromLocalFile(new Path(pLogFile.getAbsolutePath()), new Path(gHdfsOutputDir+pLogFile.getName()));
+			gFs.copyFromLocalFile(new Path(pLogFile.getAbsolutePath()), new Path(gHdfsWriteDir+pLogFile.getName()));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -34,6 +34,7 @@ public class HDFSFS implements ChutneyFS {
 
 	private FileSystem gFs = null;
 	private String gHdfsOutputDir = null;
+	private String gHdfsWriteDir = null;
 	
 	/**
 	 * Initialise HDFSFS
@@ -41,8 +42,20 @@ public class HDFSFS implements ChutneyFS {
 	 * @param pHdfsOutputDir HDFS output directory
 	 */
 	public HDFSFS(FileSystem pFS, String pHdfsOutputDir) {
+		this(pFS, pHdfsOutputDir, pHdfsOutputDir);
+	}
+
+	/**
+	 * Initialise HDFSFS writing to a staging directory that is moved to the output 
+	 * directory when the task is committed (see ChutneyOutputCommitter)
+	 * @param pFS HDFS file system 
+	 * @param pHdfsOutputDir HDFS output directory
+	 * @param pHdfsStagingDir HDFS directory to write files to
+	 */
+	public HDFSFS(FileSystem pFS, String pHdfsOutputDir, String pHdfsStagingDir) {
 		gFs = pFS;
 		gHdfsOutputDir = pHdfsOutputDir;
+		gHdfsWriteDir = pHdfsStagingDir;
 	}
 	
 	@Override
@@ -59,7 +72,7 @@ public class HDFSFS implements ChutneyFS {
 	public String putFile(boolean pSuccess, File pFrom, String pTo, String pDatastream,
 			String pMessage, String pMimetype, boolean pOverwrite) {
 		try {
-			gFs.copyFromLocalFile(new Path(pFrom.getAbsolutePath()), new Path(gHdfsOutputDir+pTo));
+			gFs.copyFromLocalFile(new Path(pFrom.getAbsolutePath()), new Path(gHdfsWriteDir+pTo));
 			return gHdfsOutputDir+pTo;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -75,7 +88,7 @@ public class HDFSFS implements ChutneyFS {
 	@Override
 	public void saveLogFile(File pLogFile) {
 		try {
-			gFs.copyFromLocalFile(new Path(pLogFile.getAbsolutePath()), new Path(gHdfsOutputDir+pLogFile.getName()));
+			gFs.copyFromLocalFile(new Path(pLogFile.getAbsolutePath()), new Path(gHdfsWriteDir+pLogFile.getName()));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
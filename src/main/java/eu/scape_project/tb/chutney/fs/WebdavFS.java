@@ -18,7 +18,11 @@
 package eu.scape_project.tb.chutney.fs;
 
 import java.io.File;
+
+import org.apache.hadoop.fs.FileSystem;
+
 import uk.bl.dpt.fclib.WebdavDataConnector;
+import eu.scape_project.tb.chutney.ChutneyOutputCommitter;
 
 /**
  * Implement a Webdav ChutneyFS file system
@@ -28,6 +32,38 @@ public class WebdavFS implements ChutneyFS {
 
 	private String gWebdavLoc = null;
 	private String gDir = null;
+	/**
+	 * HDFS file system for claiming files (see ChutneyOutputCommitter), null if 
+	 * files are not claimed
+	 */
+	private FileSystem gFs = null;
+	/**
+	 * HDFS output directory for claiming files
+	 */
+	private String gHdfsOutputDir = null;
+	/**
+	 * HDFS staging directory of the task attempt, identifying its claims
+	 */
+	private String gHdfsStagingDir = null;
+
+	/**
+	 * Initialise WebdavFS
+	 */
+	public WebdavFS() {
+	}
+
+	/**
+	 * Initialise WebdavFS for a task attempt that may run alongside a speculative attempt.
+	 * Only the first attempt posts each file.
+	 * @param pFS HDFS file system (for claiming files)
+	 * @param pHdfsOutputDir HDFS output directory (for claiming files)
+	 * @param pHdfsStagingDir HDFS staging directory of the task attempt (for claiming files)
+	 */
+	public WebdavFS(FileSystem pFS, String pHdfsOutputDir, String pHdfsStagingDir) {
+		gFs = pFS;
+		gHdfsOutputDir = pHdfsOutputDir;
+		gHdfsStagingDir = pHdfsStagingDir;
+	}
 	
 	@Override
 	public File getFile(String pInput, File pTempDir) {
@@ -44,7 +80,9 @@ public class WebdavFS implements ChutneyFS {
 	@Override
 	public String putFile(boolean pSuccess, File pFrom, String pTo, String pDatastream,
 			String pMessage, String pMimetype, boolean pOverwrite) {
-		WebdavDataConnector.postFile(pFrom, gDir, pOverwrite);
+		if(null==gFs||ChutneyOutputCommitter.claim(gFs, gHdfsOutputDir, gHdfsStagingDir, gDir+pFrom.getName())) {
+			WebdavDataConnector.postFile(pFrom, gDir, pOverwrite);
+		}
 		return gDir+pFrom.getName();
 	}
 
@@ -55,7 +93,9 @@ public class WebdavFS implements ChutneyFS {
 
 	@Override
 	public void saveLogFile(File pLogFile) {
-		WebdavDataConnector.postFile(pLogFile, gDir, false);
+		if(null==gFs||ChutneyOutputCommitter.claim(gFs, gHdfsOutputDir, gHdfsStagingDir, gDir+pLogFile.getName())) {
+			WebdavDataConnector.postFile(pLogFile, gDir, false);
+		}
 	}
 
 }
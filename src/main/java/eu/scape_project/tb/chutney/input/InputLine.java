@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney.input;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A line from the input list, with the input files it references and their 
+ * combined size.  Used when planning splits.
+ * @author wpalmer
+ *
+ */
+public class InputLine {
+
+	/**
+	 * The line, as it appears in the input list
+	 */
+	private String gLine;
+	/**
+	 * The input files referenced by the line
+	 */
+	private List<String> gFiles;
+	/**
+	 * Combined size of the input files (bytes), -1 if unknown
+	 */
+	private long gSize = -1;
+	/**
+	 * Bytes of the input files held by each host 
+	 */
+	private HashMap<String, Long> gHostBytes = new HashMap<String, Long>();
+
+	/**
+	 * Create an InputLine
+	 * @param pLine line from the input list
+	 */
+	public InputLine(String pLine) {
+		gLine = pLine;
+		gFiles = getInputFiles(pLine);
+	}
+
+	/**
+	 * Get the line
+	 * @return the line, as it appears in the input list
+	 */
+	public String getLine() {
+		return gLine;
+	}
+
+	/**
+	 * Get the input files referenced by this line
+	 * @return list of input files
+	 */
+	public List<String> getFiles() {
+		return gFiles;
+	}
+
+	/**
+	 * Get the combined size of the input files
+	 * @return size in bytes, or -1 if unknown
+	 */
+	public long getSize() {
+		return gSize;
+	}
+
+	/**
+	 * Set the combined size of the input files
+	 * @param pSize size in bytes
+	 */
+	public void setSize(long pSize) {
+		gSize = pSize;
+	}
+
+	/**
+	 * Record that a host holds some of the data for this line
+	 * @param pHost host name
+	 * @param pBytes number of bytes held by the host
+	 */
+	public void addHostBytes(String pHost, long pBytes) {
+		Long bytes = gHostBytes.get(pHost);
+		if(null==bytes) bytes = 0L;
+		gHostBytes.put(pHost, bytes+pBytes);
+	}
+
+	/**
+	 * Get the host holding the most data for this line
+	 * @return host name, or null if not known
+	 */
+	public String getBestHost() {
+		List<String> hosts = getBestHosts(Collections.singletonList(this), 1);
+		if(hosts.size()==0) return null;
+		return hosts.get(0);
+	}
+
+	/**
+	 * Get the hosts holding the most data for a group of lines
+	 * @param pLines lines to consider
+	 * @param pMax maximum number of hosts to return
+	 * @return host names, most data first
+	 */
+	public static List<String> getBestHosts(Collection<InputLine> pLines, int pMax) {
+		final HashMap<String, Long> hostBytes = new HashMap<String, Long>();
+		for(InputLine line:pLines) {
+			for(String host:line.gHostBytes.keySet()) {
+				Long bytes = hostBytes.get(host);
+				if(null==bytes) bytes = 0L;
+				hostBytes.put(host, bytes+line.gHostBytes.get(host));
+			}
+		}
+		List<String> hosts = new ArrayList<String>(hostBytes.keySet());
+		Collections.sort(hosts, new Comparator<String>() {
+			public int compare(String pA, String pB) {
+				return hostBytes.get(pB).compareTo(hostBytes.get(pA));
+			}
+		});
+		if(hosts.size()>pMax) return hosts.subList(0, pMax);
+		return hosts;
+	}
+
+	/**
+	 * Recover the input files from an input line.  This must match the parsing
+	 * of input lines in Chutney.map (HASH:, INPUT: and SUCCESS: entries are not files).
+	 * @param pLine line from the input list
+	 * @return list of input files
+	 */
+	public static List<String> getInputFiles(String pLine) {
+		List<String> files = new LinkedList<String>();
+		for(String s:pLine.split(",")) {
+			s = s.trim();
+			if(s.length()==0) continue;
+			if(s.startsWith("HASH:")) continue;
+			if(s.startsWith("SUCCESS:")) continue;
+			if(s.startsWith("INPUT:")) continue;
+			files.add(s);
+		}
+		return files;
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney.input;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import uk.bl.dpt.fclib.FedoraDataConnector;
+import uk.bl.dpt.fclib.WebdavDataConnector;
+import eu.scape_project.tb.chutney.Settings;
+
+/**
+ * Base class for input formats that read the whole input list at submission
+ * time and group the lines in to InputListSplits.  The number of splits is the 
+ * same as NLineInputFormat would generate, only the grouping changes.
+ * @author wpalmer
+ *
+ */
+public abstract class InputListFormat extends FileInputFormat<LongWritable, Text> {
+
+	@Override
+	public InputSplit[] getSplits(JobConf pJob, int pNumSplits) throws IOException {
+
+		List<InputLine> lines = readInputLines(pJob);
+		
+		int linesPerMap = pJob.getInt(Settings.LINESPERMAP_CONF_SETTING, Settings.DEFAULT_LINES_PER_MAP);
+		int numSplits = (lines.size()+linesPerMap-1)/linesPerMap;
+
+		List<InputListSplit> splits = planSplits(pJob, lines, numSplits);
+		System.out.println(getClass().getSimpleName()+": "+lines.size()+" lines in "+splits.size()+" splits");
+		
+		return splits.toArray(new InputSplit[splits.size()]);
+	}
+
+	/**
+	 * Group the input lines in to splits
+	 * @param pJob job configuration
+	 * @param pLines all lines from the input list
+	 * @param pNumSplits number of splits to aim for
+	 * @return list of splits
+	 * @throws IOException file access error
+	 */
+	protected abstract List<InputListSplit> planSplits(JobConf pJob, List<InputLine> pLines, int pNumSplits) throws IOException;
+
+	@Override
+	public RecordReader<LongWritable, Text> getRecordReader(InputSplit pSplit, JobConf pJob, Reporter pReporter) throws IOException {
+		pReporter.setStatus(pSplit.toString());
+		return new InputListRecordReader((InputListSplit)pSplit);
+	}
+
+	/**
+	 * Read all the (non-blank) lines from the input list(s)
+	 * @param pJob job configuration
+	 * @return list of input lines
+	 * @throws IOException file access error
+	 */
+	protected List<InputLine> readInputLines(JobConf pJob) throws IOException {
+		List<InputLine> lines = new ArrayList<InputLine>();
+		for(FileStatus status:listStatus(pJob)) {
+			FileSystem fs = status.getPath().getFileSystem(pJob);
+			BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+			String line = in.readLine();
+			while(line!=null) {
+				//blank lines are skipped by the map anyway
+				if(line.trim().length()>0) {
+					lines.add(new InputLine(line));
+				}
+				line = in.readLine();
+			}
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Find the size of the inputs referenced by each line.  Files in HDFS are 
+	 * stat'd once each (by listing the parent directory when it holds more than 
+	 * one input).  Fedora and Webdav inputs cannot be stat'd so their sizes 
+	 * are recovered from .metrics files of previous runs, if a metrics directory
+	 * is set.  Any remaining unknown sizes are set to the mean of the known sizes.
+	 * @param pJob job configuration
+	 * @param pLines lines to set the size of
+	 * @throws IOException file access error
+	 */
+	protected static void setSizes(JobConf pJob, List<InputLine> pLines) throws IOException {
+		
+		//group the hdfs files by parent directory so each directory is only listed once
+		HashMap<Path, List<String>> parents = new HashMap<Path, List<String>>();
+		for(InputLine line:pLines) {
+			for(String file:line.getFiles()) {
+				if(isRemote(file)) continue;
+				Path parent = new Path(file).getParent();
+				if(!parents.containsKey(parent)) {
+					parents.put(parent, new ArrayList<String>());
+				}
+				parents.get(parent).add(new Path(file).getName());
+			}
+		}
+		
+		HashMap<String, Long> sizes = new HashMap<String, Long>();
+		for(Path parent:parents.keySet()) {
+			FileSystem fs = parent.getFileSystem(pJob);
+			List<String> names = parents.get(parent);
+			if(names.size()==1) {
+				Path file = new Path(parent, names.get(0));
+				if(fs.exists(file)) {
+					sizes.put(parent+"/"+names.get(0), fs.getFileStatus(file).getLen());
+				}
+			} else {
+				FileStatus[] status = fs.listStatus(parent);
+				if(null==status) continue;
+				for(FileStatus fileStatus:status) {
+					sizes.put(parent+"/"+fileStatus.getPath().getName(), fileStatus.getLen());
+				}
+			}
+		}
+
+		HashMap<String, Long> metrics = readMetricsSizes(pJob);
+
+		long known = 0;
+		long total = 0;
+		for(InputLine line:pLines) {
+			long size = 0;
+			boolean allKnown = true;
+			for(String file:line.getFiles()) {
+				Long fileSize = null;
+				if(!isRemote(file)) {
+					Path path = new Path(file);
+					fileSize = sizes.get(path.getParent()+"/"+path.getName());
+				}
+				if(null==fileSize) {
+					allKnown = false;
+					break;
+				}
+				size += fileSize;
+			}
+			if(!allKnown) {
+				//fall back to the size recorded in a previous run for this line
+				Long lineSize = metrics.get(line.getLine().trim());
+				if(null==lineSize) continue;
+				size = lineSize;
+			}
+			line.setSize(size);
+			known++;
+			total += size;
+		}
+
+		long mean = 1;
+		if(known>0&total>0) mean = total/known;
+		for(InputLine line:pLines) {
+			if(line.getSize()<0) line.setSize(mean);
+		}
+		System.out.println("Input sizes known for "+known+" of "+pLines.size()+" lines");
+	}
+
+	/**
+	 * Find which hosts hold the blocks of the HDFS inputs referenced by each 
+	 * line (and the size of the inputs).  This costs a block location lookup 
+	 * per input file.
+	 * @param pJob job configuration
+	 * @param pLines lines to find the locations of
+	 * @throws IOException file access error
+	 */
+	protected static void setLocations(JobConf pJob, List<InputLine> pLines) throws IOException {
+		int located = 0;
+		for(InputLine line:pLines) {
+			long size = 0;
+			for(String file:line.getFiles()) {
+				if(isRemote(file)) continue;
+				Path path = new Path(file);
+				FileSystem fs = path.getFileSystem(pJob);
+				if(!fs.exists(path)) continue;
+				FileStatus status = fs.getFileStatus(path);
+				size += status.getLen();
+				BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+				if(null==blocks) continue;
+				for(BlockLocation block:blocks) {
+					for(String host:block.getHosts()) {
+						line.addHostBytes(host, block.getLength());
+					}
+				}
+			}
+			line.setSize(size);
+			if(null!=line.getBestHost()) located++;
+		}
+		System.out.println("Input locations known for "+located+" of "+pLines.size()+" lines");
+	}
+
+	/**
+	 * Is this file somewhere other than HDFS (i.e. Fedora or Webdav)
+	 * @param pFile file name or URI
+	 * @return true if the file is not in HDFS
+	 */
+	private static boolean isRemote(String pFile) {
+		return pFile.contains(FedoraDataConnector.DC_URI)|pFile.contains(WebdavDataConnector.DC_URI);
+	}
+
+	/**
+	 * Recover input sizes from the .metrics files written by Chutney.map in a 
+	 * previous run (see Chutney.map for the format)
+	 * @param pJob job configuration
+	 * @return map of input line to total input size in bytes
+	 * @throws IOException file access error
+	 */
+	private static HashMap<String, Long> readMetricsSizes(JobConf pJob) throws IOException {
+		HashMap<String, Long> metrics = new HashMap<String, Long>();
+		String dir = pJob.get(Settings.METRICS_CONF_SETTING);
+		if(null==dir) return metrics;
+		
+		Path pattern = new Path(dir, "*.metrics");
+		FileSystem fs = pattern.getFileSystem(pJob);
+		FileStatus[] status = fs.globStatus(pattern);
+		if(null==status) return metrics;
+		for(FileStatus metricsFile:status) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(metricsFile.getPath())));
+			String inputLine = null;
+			String line = in.readLine();
+			while(line!=null) {
+				if(line.startsWith("Input line: ")) {
+					inputLine = line.substring("Input line: ".length()).trim();
+				}
+				if(line.startsWith("Get: ")&null!=inputLine) {
+					//Get: Files: n, Size: s, MS in copy operation: t
+					for(String s:line.split(",")) {
+						s = s.trim();
+						if(s.startsWith("Size: ")) {
+							try {
+								metrics.put(inputLine, new Long(s.substring("Size: ".length())));
+							} catch(NumberFormatException e) {
+							}
+						}
+					}
+				}
+				line = in.readLine();
+			}
+			in.close();
+		}
+		System.out.println("Loaded sizes for "+metrics.size()+" inputs from "+dir);
+		return metrics;
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney.input;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.RecordReader;
+
+/**
+ * Reads the lines held in an InputListSplit.  The key is the index of the line
+ * in the split (unused by Chutney, cf. the line offset from NLineInputFormat).
+ * @author wpalmer
+ *
+ */
+public class InputListRecordReader implements RecordReader<LongWritable, Text> {
+
+	/**
+	 * Split to read from
+	 */
+	private InputListSplit gSplit;
+	/**
+	 * Index of the next line to return
+	 */
+	private int gPos = 0;
+
+	/**
+	 * Create a record reader for a split
+	 * @param pSplit split to read
+	 */
+	public InputListRecordReader(InputListSplit pSplit) {
+		gSplit = pSplit;
+	}
+
+	@Override
+	public boolean next(LongWritable pKey, Text pValue) throws IOException {
+		if(gPos>=gSplit.getLines().length) return false;
+		pKey.set(gPos);
+		pValue.set(gSplit.getLines()[gPos]);
+		gPos++;
+		return true;
+	}
+
+	@Override
+	public LongWritable createKey() {
+		return new LongWritable();
+	}
+
+	@Override
+	public Text createValue() {
+		return new Text();
+	}
+
+	@Override
+	public long getPos() throws IOException {
+		return gPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	@Override
+	public float getProgress() throws IOException {
+		if(gSplit.getLines().length==0) return 1.0f;
+		return (float)gPos/gSplit.getLines().length;
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney.input;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.InputSplit;
+
+/**
+ * An input split that carries the input list lines it contains, rather than 
+ * an offset in to the input list.  This allows lines to be grouped by something
+ * other than their position in the input list.
+ * @author wpalmer
+ *
+ */
+public class InputListSplit implements InputSplit {
+
+	/**
+	 * Input lines in this split
+	 */
+	private String[] gLines = new String[0];
+	/**
+	 * Total size of the inputs referenced by the lines (bytes)
+	 */
+	private long gLength = 0;
+	/**
+	 * Hosts that hold the data for this split (not serialised)
+	 */
+	private String[] gHosts = new String[0];
+
+	/**
+	 * Empty constructor, used by Hadoop before readFields()
+	 */
+	public InputListSplit() {
+	}
+
+	/**
+	 * Create a new split
+	 * @param pLines input lines in this split
+	 * @param pLength total size of the inputs referenced by the lines
+	 * @param pHosts hosts that hold the data for this split
+	 */
+	public InputListSplit(List<String> pLines, long pLength, String[] pHosts) {
+		gLines = pLines.toArray(new String[pLines.size()]);
+		gLength = pLength;
+		gHosts = pHosts;
+	}
+
+	/**
+	 * Get the input lines in this split
+	 * @return input lines
+	 */
+	public String[] getLines() {
+		return gLines;
+	}
+
+	@Override
+	public long getLength() throws IOException {
+		return gLength;
+	}
+
+	@Override
+	public String[] getLocations() throws IOException {
+		return gHosts;
+	}
+
+	@Override
+	public void write(DataOutput pOut) throws IOException {
+		pOut.writeLong(gLength);
+		pOut.writeInt(gLines.length);
+		for(String line:gLines) {
+			Text.writeString(pOut, line);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput pIn) throws IOException {
+		gLength = pIn.readLong();
+		gLines = new String[pIn.readInt()];
+		for(int i=0;i<gLines.length;i++) {
+			gLines[i] = Text.readString(pIn);
+		}
+		gHosts = new String[0];
+	}
+
+}
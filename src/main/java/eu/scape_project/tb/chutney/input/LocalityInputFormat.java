@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * An input format for input lists of files in HDFS that groups lines whose 
+ * data is held on the same host, and reports those hosts as the split 
+ * locations.  This lets the JobTracker run maps where their input files are,
+ * rather than next to the input list, so copying the files to the local temp 
+ * dir reads from local disk.
+ * @author wpalmer
+ *
+ */
+public class LocalityInputFormat extends InputListFormat {
+
+	/**
+	 * Number of hosts to report for each split (cf. HDFS replication)
+	 */
+	private static final int MAX_HOSTS = 3;
+
+	@Override
+	protected List<InputListSplit> planSplits(JobConf pJob, List<InputLine> pLines, int pNumSplits) throws IOException {
+
+		setLocations(pJob, pLines);
+
+		//group the lines by the host that holds most of their data
+		//lines with no known host (i.e. not in HDFS) are grouped together
+		LinkedHashMap<String, List<InputLine>> byHost = new LinkedHashMap<String, List<InputLine>>();
+		for(InputLine line:pLines) {
+			String host = line.getBestHost();
+			if(null==host) host = "";
+			if(!byHost.containsKey(host)) {
+				byHost.put(host, new ArrayList<InputLine>());
+			}
+			byHost.get(host).add(line);
+		}
+
+		//split each host's lines in to groups of linespermap
+		int linesPerMap = Math.max(1, (pLines.size()+pNumSplits-1)/Math.max(1, pNumSplits));
+		List<InputListSplit> splits = new ArrayList<InputListSplit>();
+		for(List<InputLine> hostLines:byHost.values()) {
+			for(int i=0;i<hostLines.size();i+=linesPerMap) {
+				List<InputLine> group = hostLines.subList(i, Math.min(i+linesPerMap, hostLines.size()));
+				List<String> lines = new ArrayList<String>();
+				long size = 0;
+				for(InputLine line:group) {
+					lines.add(line.getLine());
+					size += line.getSize();
+				}
+				List<String> hosts = InputLine.getBestHosts(group, MAX_HOSTS);
+				splits.add(new InputListSplit(lines, size, hosts.toArray(new String[hosts.size()])));
+			}
+		}
+		return splits;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package eu.scape_project.tb.chutney.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * An input format that groups the input lines in to splits of (roughly) equal
+ * total input size, rather than equal numbers of lines.  Lines are assigned 
+ * largest first to the split with the least data so far, so big inputs are 
+ * spread over the maps and small ones fill in the gaps.
+ * @author wpalmer
+ *
+ */
+public class SizeBalancedInputFormat extends InputListFormat {
+
+	/**
+	 * A split being built
+	 */
+	private static class Bin {
+		private List<String> gLines = new ArrayList<String>();
+		private long gSize = 0;
+	}
+
+	@Override
+	protected List<InputListSplit> planSplits(JobConf pJob, List<InputLine> pLines, int pNumSplits) throws IOException {
+
+		setSizes(pJob, pLines);
+
+		//largest first
+		List<InputLine> lines = new ArrayList<InputLine>(pLines);
+		Collections.sort(lines, new Comparator<InputLine>() {
+			public int compare(InputLine pA, InputLine pB) {
+				if(pA.getSize()==pB.getSize()) return 0;
+				return pA.getSize()>pB.getSize()?-1:1;
+			}
+		});
+
+		PriorityQueue<Bin> bins = new PriorityQueue<Bin>(Math.max(1, pNumSplits), new Comparator<Bin>() {
+			public int compare(Bin pA, Bin pB) {
+				if(pA.gSize==pB.gSize) return pA.gLines.size()-pB.gLines.size();
+				return pA.gSize<pB.gSize?-1:1;
+			}
+		});
+		for(int i=0;i<pNumSplits;i++) {
+			bins.add(new Bin());
+		}
+
+		//put each line in to the emptiest split
+		for(InputLine line:lines) {
+			Bin bin = bins.poll();
+			bin.gLines.add(line.getLine());
+			bin.gSize += line.getSize();
+			bins.add(bin);
+		}
+
+		List<InputListSplit> splits = new ArrayList<InputListSplit>();
+		for(Bin bin:bins) {
+			if(bin.gLines.size()==0) continue;
+			splits.add(new InputListSplit(bin.gLines, bin.gSize, new String[0]));
+		}
+		return splits;
+	}
+
+}
@@ -97,6 +97,11 @@ public class CommandLineJob implements ChutneyJob {
 	 * Set in generateShortReport()
 	 */
 	private boolean gSuccess = false;
+
+	/**
+	 * Whether a tool was killed for running longer than Settings.CLJ_TOOL_TIMEOUT
+	 */
+	private boolean gTimedOut = false;
 	//assume input is valid
 	//private boolean gInputValid = true;
 	
@@ -166,7 +171,7 @@ public class CommandLineJob implements ChutneyJob {
 			pCommandLine.remove("");
 		}
 		
-		ProcessBuilder pb = new ProcessBuilder(pCommandLine);
+		ProcessBuilder pb = new ProcessBuilder(Tools.inProcessGroup(Tools.limitCpuTime(pCommandLine, Settings.CLJ_TOOL_CPUTIME)));
 		//don't redirect stderr to stdout as our output XML is in stdout
 		pb.redirectErrorStream(false);
 		//set the working directory to our temporary directory
@@ -186,8 +191,11 @@ public class CommandLineJob implements ChutneyJob {
 		gStdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
 		gStderr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
 		try {
-			//wait for process to end before continuing
-			proc.waitFor();
+			//wait for process to end before continuing, killing it if it hangs
+			if(!Tools.waitForProcess(proc, Settings.CLJ_TOOL_TIMEOUT)) {
+				System.out.println("TIMEOUT: killed "+pCommandLine.get(0)+" after "+Settings.CLJ_TOOL_TIMEOUT+" seconds");
+				gTimedOut = true;
+			}
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -736,21 +744,21 @@ public class CommandLineJob implements ChutneyJob {
 			gSuccess = false;
 			
 		}
-		//finally, generate a checksum for the all files incl the log file
-		//a place to store the checksums
+		//finally, list the checksums for the all files incl the log file
+		//a place to store the checksums, they are calculated as the files are zipped
+		//unless they are in the ChecksumCatalog
 		HashMap<String, String> checksums = new HashMap<String, String>();
-		System.out.println("Generating checksums...");
 		for(String file : gGeneratedFiles) {
 			System.out.println(file);
 			File temp = new File(gTempDir+(new File(file).getName()));
 			if(temp.exists())
-				checksums.put(file, Tools.generateChecksum(temp.getAbsolutePath()));
+				checksums.put(file, null);
 		}
 
 		if(gAddLogToZip) {
 			//hack?
 			File log = new File(gLogFile);
-			checksums.put(log.getName(), Tools.generateChecksum(log.getAbsolutePath()));
+			checksums.put(log.getName(), null);
 			gGeneratedFiles.add(log.getName());
 		}
 
@@ -791,10 +799,13 @@ public class CommandLineJob implements ChutneyJob {
 			imagemagickMatch = Tools.getPSNRVal(gTempDir+gOutFile+Settings.IMAGEMAGICK_PSNR_EXT)>Settings.PSNR_THRESHOLD;
 			out.write("     <psnrMatches>"+imagemagickMatch+"</psnrMatches>");out.newLine(); 			
 		}
+		if(gTimedOut) {
+			out.write("     <toolTimedOut>true</toolTimedOut>");out.newLine();
+		}
 		out.write("</migrationReport>");out.newLine();
 		out.close();
 		
-		gSuccess = (((generatedIsValid&generatedMatchesInputProfile&ssimMatch&imagemagickMatch)==true));
+		gSuccess = (((generatedIsValid&generatedMatchesInputProfile&ssimMatch&imagemagickMatch)==true)&!gTimedOut);
 		
 		return gSuccess;
 	}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package eu.scape_project.tb.chutney.jobs;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import eu.scape_project.tb.chutney.FileTracker;
+import eu.scape_project.tb.chutney.Settings;
+import eu.scape_project.tb.chutney.Settings.JobType;
+import eu.scape_project.tb.chutney.Tools;
+
+/**
+ * This class deletes FileTracker directories that are no longer needed, i.e. those left
+ * behind by pipelines that never reached their XMLWorkflowReport.  Each input line is
+ * one top level tracker shard (00-ff), or "legacy" for trackers from before trackers
+ * were sharded (see ChutneyDriver, which generates the list).  Trackers that have
+ * expired or are orphaned (see FileTracker.getGarbageReason) are deleted in batches on
+ * a pool of threads.
+ *
+ * Each map also deletes old files from Settings.TMP_DIR on the node it runs on.  This
+ * can be run on its own on every node (e.g. from cron) with main().
+ * @author wpalmer
+ *
+ */
+public class TrackerGCJob implements ChutneyJob {
+
+	/**
+	 * Input line for trackers from before trackers were sharded
+	 */
+	public static final String LEGACY_SHARD = "legacy";
+	/**
+	 * Number of tracker directories each delete task is given
+	 */
+	private static final int DELETE_BATCH = 100;
+
+	/**
+	 * HDFS file system
+	 */
+	private FileSystem gFs;
+	/**
+	 * Shard to collect
+	 */
+	private String gShard;
+	/**
+	 * Time after the last file was stored that a tracker expires (ms)
+	 */
+	private long gTtl;
+	/**
+	 * Log file listing what was deleted
+	 */
+	private String gLogFile;
+	/**
+	 * Whether the collection completed without errors
+	 */
+	private boolean gSuccess = false;
+
+	/**
+	 * Construct a TrackerGCJob
+	 * @param pFs HDFS file system
+	 * @param pShard shard to collect (00-ff, or LEGACY_SHARD)
+	 * @param pTempDir local temporary directory for the log
+	 * @param pTtl time after the last file was stored that a tracker expires (ms)
+	 */
+	public TrackerGCJob(FileSystem pFs, String pShard, String pTempDir, long pTtl) {
+		gFs = pFs;
+		gShard = pShard.trim();
+		gTtl = pTtl;
+		gLogFile = pTempDir+"/gc-"+gShard+".log";
+	}
+
+	/**
+	 * Set up the job (nothing to do)
+	 */
+	public void setup() throws IOException {
+	}
+
+	/**
+	 * Find and delete the unused trackers in the shard, then clean the local temp dir
+	 */
+	public void run() throws IOException {
+		final long now = System.currentTimeMillis();
+		PrintWriter log = new PrintWriter(new FileWriter(gLogFile));
+
+		Path pattern = new Path(Settings.TRACKER_STORAGE_DIR+gShard+"/*/*");
+		if(gShard.equals(LEGACY_SHARD)) {
+			pattern = new Path(Settings.TRACKER_STORAGE_DIR+"*.dir");
+		}
+		List<Path> garbage = new ArrayList<Path>();
+		FileStatus[] trackers = gFs.globStatus(pattern);
+		if(null!=trackers) {
+			for(FileStatus tracker:trackers) {
+				if(!tracker.isDirectory()) continue;
+				String reason = FileTracker.getGarbageReason(gFs, tracker.getPath(), now, gTtl);
+				if(null!=reason) {
+					log.println(reason+": "+tracker.getPath());
+					garbage.add(tracker.getPath());
+				}
+			}
+		}
+
+		//recursive deletes are slow in the namenode so run several at once
+		ExecutorService pool = Executors.newFixedThreadPool(Settings.GC_THREADS);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for(int i=0;i<garbage.size();i+=DELETE_BATCH) {
+			final List<Path> batch = garbage.subList(i, Math.min(i+DELETE_BATCH, garbage.size()));
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					int deleted = 0;
+					for(Path tracker:batch) {
+						//check again in case the tracker has been used since it was listed
+						if(null==FileTracker.getGarbageReason(gFs, tracker, System.currentTimeMillis(), gTtl)) continue;
+						if(gFs.delete(tracker, true)) deleted++;
+					}
+					return deleted;
+				}
+			}));
+		}
+		pool.shutdown();
+
+		gSuccess = true;
+		int deleted = 0;
+		for(Future<Integer> result:results) {
+			try {
+				deleted += result.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				gSuccess = false;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				gSuccess = false;
+			}
+		}
+		log.println("Deleted "+deleted+" of "+garbage.size()+" tracker directories in shard "+gShard);
+
+		//clean the local temp dir on this node while we are here
+		for(File file:sweepTempDir(Settings.TMP_DIR_MAX_AGE)) {
+			log.println("Deleted local: "+file);
+		}
+		log.close();
+	}
+
+	/**
+	 * Delete files and directories in Settings.TMP_DIR on this node that have not been
+	 * modified for a given time.  The node's file cache is left to LocalCache.
+	 * @param pMaxAge time after which files are deleted (ms)
+	 * @return the files and directories that were deleted
+	 */
+	public static List<File> sweepTempDir(long pMaxAge) {
+		List<File> deleted = new ArrayList<File>();
+		File[] files = new File(Settings.TMP_DIR).listFiles();
+		if(null==files) return deleted;
+		long now = System.currentTimeMillis();
+		File cache = new File(Settings.LOCAL_CACHE_DIR);
+		for(File file:files) {
+			if(file.getAbsoluteFile().equals(cache.getAbsoluteFile())) continue;
+			//a directory is in use if anything in it has been modified recently
+			if(now-getLastModified(file)<pMaxAge) continue;
+			boolean ok = file.isDirectory()?Tools.deleteDirectory(file):file.delete();
+			if(ok) deleted.add(file);
+		}
+		return deleted;
+	}
+
+	/**
+	 * @param pFile file or directory
+	 * @return the latest modification time of the file, or anything in the directory
+	 */
+	private static long getLastModified(File pFile) {
+		long lastModified = pFile.lastModified();
+		File[] children = pFile.listFiles();
+		if(null!=children) {
+			for(File child:children) {
+				lastModified = Math.max(lastModified, getLastModified(child));
+			}
+		}
+		return lastModified;
+	}
+
+	/**
+	 * Was the job successful?
+	 */
+	public boolean wasSuccessful() {
+		return gSuccess;
+	}
+
+	/**
+	 * Clean up after the job (nothing to do)
+	 */
+	public void cleanup() throws IOException {
+	}
+
+	/**
+	 * Get the name of the log file
+	 * @return full path to the log file
+	 */
+	public String getLogFilename() {
+		return gLogFile;
+	}
+
+	/**
+	 * Get the full path of the output file(s)
+	 * @return no output files (the log lists what was deleted)
+	 */
+	public String[] getOutputFiles() {
+		return new String[0];
+	}
+
+	/**
+	 * Get a list of input files
+	 * @return null (there are no input files)
+	 */
+	public String[] getInputFiles() {
+		return null;
+	}
+
+	public static JobType getJobType() {
+		return JobType.TrackerGCJob;
+	}
+
+	public static String getShortJobType() {
+		return "TGC";
+	}
+
+	/**
+	 * Clean the local temp dir on this node
+	 * @param args optional maximum age of the files to keep, in hours
+	 */
+	public static void main(String[] args) {
+		long maxAge = Settings.TMP_DIR_MAX_AGE;
+		if(args.length>0) {
+			maxAge = Long.parseLong(args[0])*60*60*1000;
+		}
+		for(File file:sweepTempDir(maxAge)) {
+			System.out.println("Deleted: "+file);
+		}
+	}
+
+}
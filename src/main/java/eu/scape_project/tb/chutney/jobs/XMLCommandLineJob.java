@@ -33,10 +33,12 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.apache.hadoop.fs.HardLink;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
+import eu.scape_project.tb.chutney.LatencyTracker;
 import eu.scape_project.tb.chutney.Settings;
 import eu.scape_project.tb.chutney.Tools;
 import eu.scape_project.tb.chutney.Settings.JobType;
@@ -63,6 +65,10 @@ public class XMLCommandLineJob implements ChutneyJob {
 		 * List of output files, as defined in the xml
 		 */
 		private String[] gOutFiles;
+		/**
+		 * Whether each output file is promoted to final output, as defined in the xml
+		 */
+		private boolean[] gPromote;
 		/**
 		 * Command line, as defined in the xml
 		 */
@@ -75,6 +81,14 @@ public class XMLCommandLineJob implements ChutneyJob {
 		 * Whether to redirect stdout to an output file, as defined in the xml
 		 */
 		private boolean gRedirectSTDOUT = false;
+		/**
+		 * Wall clock time limit in seconds, as defined in the xml (0 for no limit)
+		 */
+		private long gTimeout = 0;
+		/**
+		 * Cpu time limit in seconds, as defined in the xml (0 for no limit)
+		 */
+		private long gCpuTime = 0;
 		/**
 		 * Instantiate the class
 		 * @param pXmlCode a full path to a local file containing XML code
@@ -123,6 +137,20 @@ public class XMLCommandLineJob implements ChutneyJob {
 		public String getLibraryPath() {
 			return gLibraryPath;
 		}
+		/**
+		 * Get the wall clock time limit
+		 * @return time limit in seconds (0 for no limit)
+		 */
+		public long getTimeout() {
+			return gTimeout;
+		}
+		/**
+		 * Get the cpu time limit
+		 * @return time limit in seconds (0 for no limit)
+		 */
+		public long getCpuTime() {
+			return gCpuTime;
+		}
 		/**
 		 * Get the list of output files
 		 * @return list of output files
@@ -130,6 +158,14 @@ public class XMLCommandLineJob implements ChutneyJob {
 		public String[] getOutputFiles() {
 			return gOutFiles;
 		}
+		/**
+		 * Whether an output file is final output rather than an intermediate file
+		 * @param pIndex index of the output file
+		 * @return true if the output is promoted
+		 */
+		public boolean isPromoted(int pIndex) {
+			return gPromote[pIndex];
+		}
 		/**
 		 * Get the list of input files
 		 * @return list of input files
@@ -176,13 +212,20 @@ public class XMLCommandLineJob implements ChutneyJob {
 				}
 				count = new Integer(xpath.evaluate("count(/tool/output)", root));
 				gOutFiles = new String[count];
+				gPromote = new boolean[count];
 				for(int i=0;i<count;i++) {//xpath is 1-based
 					num = new Integer(xpath.evaluate("/tool/output["+(i+1)+"]/@val", root));
 					gOutFiles[num-1] = xpath.evaluate("/tool/output["+(i+1)+"]", root);
+					gPromote[num-1] = new Boolean(xpath.evaluate("/tool/output["+(i+1)+"]/@promote", root));
 				}
 				gLibraryPath = xpath.evaluate("/tool/librarypath", root);
 				gCommandLine = xpath.evaluate("/tool/command", root);
 				gRedirectSTDOUT = new Boolean(xpath.evaluate("/tool/redirectstdouttooutput", root));
+				//optional time limits
+				String timeout = xpath.evaluate("/tool/timeout", root).trim();
+				if(timeout.length()>0) gTimeout = new Long(timeout);
+				String cpuTime = xpath.evaluate("/tool/cputime", root).trim();
+				if(cpuTime.length()>0) gCpuTime = new Long(cpuTime);
 			} catch (XPathExpressionException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -190,6 +233,16 @@ public class XMLCommandLineJob implements ChutneyJob {
 		}
 	}
 
+	/**
+	 * How often to check a hedged run, in ms
+	 */
+	private static final long HEDGE_POLL_INTERVAL = 100;
+
+	/**
+	 * Whether runs that take longer than usual are hedged (see runHedged)
+	 */
+	private static boolean gHedge = false;
+
 	/**
 	 * XMLTool for this class
 	 */
@@ -209,6 +262,11 @@ public class XMLCommandLineJob implements ChutneyJob {
 	 * Set in generateShortReport()
 	 */
 	private boolean gSuccess = false;
+
+	/**
+	 * Whether the tool was killed for running longer than its timeout
+	 */
+	private boolean gTimedOut = false;
 	
 	//populate the input/output files into sensible variable names
 	private String gTempDir = "";
@@ -265,6 +323,19 @@ public class XMLCommandLineJob implements ChutneyJob {
 		return files; 
 	}
 
+	/**
+	 * Get a list of the output files that are final output (promote="true" in the xml), 
+	 * rather than intermediate files for later stages
+	 * @return list of full path names of promoted output files
+	 */
+	public String[] getPromotedFiles() {
+		List<String> files = new ArrayList<String>();
+		for(int i=0;i<gXml.getOutputFiles().length;i++) {
+			if(gXml.isPromoted(i)) files.add(gTempDir+gXml.getOutputFiles()[i]);
+		}
+		return files.toArray(new String[files.size()]);
+	}
+
 	/**
 	 * Get a list of input files
 	 * @return list of full path names of input files
@@ -280,22 +351,19 @@ public class XMLCommandLineJob implements ChutneyJob {
 	}
 
 	/**
-	 * Executes a given command line.  Note stdout and stderr will be populated by this method.
+	 * Starts a given command line
 	 * @param pCommandLine command line to run
-	 * @return exit code from execution of the command line
+	 * @param pLibraryPath library path to add to the environment
+	 * @param pDir working directory for the command
+	 * @return the running process
 	 * @throws IOException
 	 */
-	private int runCommand(List<String> pCommandLine, String pLibraryPath) throws IOException {
-		//check there are no command line options that are empty
-		while(pCommandLine.contains("")) {
-			pCommandLine.remove("");
-		}
-		
-		ProcessBuilder pb = new ProcessBuilder(pCommandLine);
+	private Process startProcess(List<String> pCommandLine, String pLibraryPath, File pDir) throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(Tools.inProcessGroup(Tools.limitCpuTime(pCommandLine, gXml.getCpuTime())));
 		//don't redirect stderr to stdout as our output XML is in stdout
 		pb.redirectErrorStream(false);
 		//set the working directory to our temporary directory
-		pb.directory(new File(gTempDir));
+		pb.directory(pDir);
 		
 		//this is somewhat inelegant
 		//HACK: add the library paths to the environment
@@ -305,19 +373,157 @@ public class XMLCommandLineJob implements ChutneyJob {
 		pb.environment().put(pLibraryPath.split("=")[0], pLibraryPath.split("=")[1]);
 		
 		//start the executable
-		Process proc = pb.start();
-		//create a log of the console output
-		gStdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-		gStderr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
+		return pb.start();
+	}
+
+	/**
+	 * Is the process still running
+	 * @param pProcess process to check
+	 * @return true if the process has not exited
+	 */
+	private static boolean isRunning(Process pProcess) {
 		try {
-			//wait for process to end before continuing
-			proc.waitFor();
+			pProcess.exitValue();
+			return false;
+		} catch(IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Executes a given command line.  Note stdout and stderr will be populated by this method.
+	 * @param pCommandLine command line to run
+	 * @return exit code from execution of the command line
+	 * @throws IOException
+	 */
+	private int runCommand(List<String> pCommandLine, String pLibraryPath) throws IOException {
+		//check there are no command line options that are empty
+		while(pCommandLine.contains("")) {
+			pCommandLine.remove("");
+		}
+		
+		long start = System.currentTimeMillis();
+		Process proc = startProcess(pCommandLine, pLibraryPath, new File(gTempDir));
+		//how long to wait before hedging this run (-1 for not yet known)
+		long hedgeAfter = -1;
+		if(gHedge) {
+			hedgeAfter = LatencyTracker.getPercentile(gXmlName, Settings.HEDGE_PERCENTILE);
+		}
+		try {
+			if(hedgeAfter<0) {
+				//wait for process to end before continuing, killing it if it hangs
+				if(!Tools.waitForProcess(proc, gXml.getTimeout())) {
+					System.out.println("TIMEOUT: killed "+pCommandLine.get(0)+" after "+gXml.getTimeout()+" seconds");
+					gTimedOut = true;
+				} else {
+					LatencyTracker.record(gXmlName, System.currentTimeMillis()-start);
+				}
+			} else {
+				proc = runHedged(proc, start, hedgeAfter, pCommandLine, pLibraryPath);
+			}
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}		
+		//create a log of the console output
+		gStdout = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+		gStderr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
 		return proc.exitValue();
 	}
+
+	/**
+	 * Wait for a process and, if it runs for longer than usual for this tool, start a 
+	 * second copy in a sibling directory with links to the same inputs.  The first copy
+	 * to succeed is kept and the other is killed.  If the second copy wins its outputs
+	 * are moved in to the temp dir.
+	 * @param pPrimary the process already running in the temp dir
+	 * @param pStart time the process was started
+	 * @param pHedgeAfter time in ms after which to start the second copy
+	 * @param pCommandLine command line to run
+	 * @param pLibraryPath library path to add to the environment
+	 * @return the process whose result is kept
+	 * @throws IOException file access error
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private Process runHedged(Process pPrimary, long pStart, long pHedgeAfter, List<String> pCommandLine, 
+			String pLibraryPath) throws IOException, InterruptedException {
+		long timeout = gXml.getTimeout()*1000;
+
+		while(isRunning(pPrimary)&&(System.currentTimeMillis()-pStart)<pHedgeAfter) {
+			if(timeout>0&&(System.currentTimeMillis()-pStart)>timeout) break;
+			Thread.sleep(HEDGE_POLL_INTERVAL);
+		}
+		//don't start a second copy of a run that has already timed out
+		if(isRunning(pPrimary)&&timeout>0&&(System.currentTimeMillis()-pStart)>timeout) {
+			System.out.println("TIMEOUT: killed "+pCommandLine.get(0)+" after "+gXml.getTimeout()+" seconds");
+			gTimedOut = true;
+			Tools.killProcess(pPrimary);
+			pPrimary.waitFor();
+			return pPrimary;
+		}
+		if(!isRunning(pPrimary)) {
+			LatencyTracker.record(gXmlName, System.currentTimeMillis()-pStart);
+			return pPrimary;
+		}
+
+		//set up the second copy with links to the same inputs
+		File hedgeDir = new File(new File(gTempDir).getAbsolutePath()+".hedge");
+		hedgeDir.mkdirs();
+		for(String input:gXml.getInputFiles()) {
+			File file = new File(gTempDir+input);
+			if(!file.exists()) continue;
+			try {
+				HardLink.createHardLink(file, new File(hedgeDir, input));
+			} catch(IOException e) {
+				Tools.copyInputToLocalTemp(hedgeDir, null, file.getAbsolutePath());
+			}
+		}
+		System.out.println("HEDGE: "+gXmlName+" running for longer than "+pHedgeAfter+"ms, starting a second copy");
+		Process hedge = startProcess(pCommandLine, pLibraryPath, hedgeDir);
+
+		Process winner = null;
+		while(winner==null) {
+			if(timeout>0&&(System.currentTimeMillis()-pStart)>timeout) {
+				System.out.println("TIMEOUT: killed "+pCommandLine.get(0)+" after "+gXml.getTimeout()+" seconds");
+				gTimedOut = true;
+				Tools.killProcess(pPrimary);
+				winner = pPrimary;
+				break;
+			}
+			boolean primaryDone = !isRunning(pPrimary);
+			boolean hedgeDone = !isRunning(hedge);
+			//keep the first to succeed, or the primary if both fail
+			if(primaryDone&&(pPrimary.exitValue()==0||hedgeDone)) {
+				winner = pPrimary;
+			} else if(hedgeDone&&(hedge.exitValue()==0||primaryDone)) {
+				winner = hedge;
+			} else {
+				Thread.sleep(HEDGE_POLL_INTERVAL);
+			}
+		}
+		Process loser = (winner==pPrimary)?hedge:pPrimary;
+		Tools.killProcess(loser);
+		loser.waitFor();
+		winner.waitFor();
+
+		if(winner==hedge) {
+			System.out.println("HEDGE: second copy of "+gXmlName+" finished first");
+			//the time the run took, not just the second copy, so the threshold isn't lowered
+			LatencyTracker.record(gXmlName, System.currentTimeMillis()-pStart);
+			for(String output:gXml.getOutputFiles()) {
+				File file = new File(hedgeDir, output);
+				if(!file.exists()) continue;
+				File target = new File(gTempDir+output);
+				target.delete();
+				Tools.moveFile(file, target);
+			}
+		} else if(!gTimedOut) {
+			LatencyTracker.record(gXmlName, System.currentTimeMillis()-pStart);
+		}
+		Tools.deleteDirectory(hedgeDir);
+
+		return winner;
+	}
 	
 	/**
 	 * Runs the command line job/workflow
@@ -338,12 +544,18 @@ public class XMLCommandLineJob implements ChutneyJob {
 			Tools.writeChecksumToLog(s, Tools.generateChecksum(gTempDir+s), gLogFile);
 		}
 
+		//old outputs may be hard links to the node's cache (see LocalCache) so remove 
+		//them rather than let the tool write over them
+		for(String s:gXml.getOutputFiles()) {
+			new File(gTempDir+s).delete();
+		}
+
 		List<String> commandLine = new ArrayList<String>();
 		for(String s: gXml.getCommandLine().split(" ")) {
 			commandLine.add(s);
 		}
 		int exitCode = runCommand(commandLine, gXml.getLibraryPath());
-		if(exitCode==0) gSuccess = true;
+		if(exitCode==0&!gTimedOut) gSuccess = true;
 
 		BufferedWriter outputFile;
 		
@@ -359,6 +571,7 @@ public class XMLCommandLineJob implements ChutneyJob {
 		outputFile = new BufferedWriter(new FileWriter(gLogFile,true));
 		//write the command line to the file
 		Tools.appendProcessInfoToLog(exitCode, commandLine, outputFile);
+		if(gTimedOut) Tools.appendTimeoutToLog(gXml.getTimeout(), outputFile);
 		//write the log of stdout and stderr to the logfile
 		if(!gXml.redirectSTDOUT()) Tools.appendBufferToFile("stdout", gStdout, outputFile);
 //		if(!xml.redirectSTDOUT()) Tools.appendBufferToFile("stdout", stdout, outputFile);
@@ -397,6 +610,15 @@ public class XMLCommandLineJob implements ChutneyJob {
 		
 			
 			
+	}
+
+	/**
+	 * Set whether runs that take longer than usual for a tool are hedged by starting a
+	 * second copy (see Settings.HEDGE_PERCENTILE)
+	 * @param pHedge true to hedge runs
+	 */
+	public static void setHedging(boolean pHedge) {
+		gHedge = pHedge;
 	}
 
 	public static JobType getJobType() {
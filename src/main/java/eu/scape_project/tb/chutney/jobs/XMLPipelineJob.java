@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013 The SCAPE Project Consortium
+ * Author: William Palmer (William.Palmer@bl.uk)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package eu.scape_project.tb.chutney.jobs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import eu.scape_project.tb.chutney.FileTracker;
+import eu.scape_project.tb.chutney.JMSComms;
+import eu.scape_project.tb.chutney.Settings.JobType;
+import eu.scape_project.tb.chutney.Tools;
+
+/**
+ * This class runs a series of XML defined jobs (cf. xml_workflow.sh) for one input, 
+ * followed by an XMLWorkflowReport, in one map.  All the stages share the FileTracker's
+ * local temp dir so files are only copied in once.  Consecutive stages that do not
+ * use each other's outputs are run at the same time.
+ * 
+ * If checkpointing is on the outputs of each set of stages are stored in the 
+ * FileTracker, as for separate XML jobs, and stages whose outputs are already 
+ * stored are not run again.  Otherwise nothing is written to HDFS until the report.
+ * @author wpalmer
+ *
+ */
+public class XMLPipelineJob implements ChutneyJob {
+
+	/**
+	 * FileTracker for the input
+	 */
+	private FileTracker gFileTracker;
+	/**
+	 * Local temporary directory (from the FileTracker)
+	 */
+	private String gTempDir = "";
+	/**
+	 * Log file for the pipeline (contains the log of each stage)
+	 */
+	private String gLogFile = "";
+	/**
+	 * Whether to store the outputs of each set of stages in HDFS
+	 */
+	private boolean gCheckpoint = false;
+	/**
+	 * Sets of stages, a set can run at the same time 
+	 */
+	private List<List<XMLCommandLineJob>> gStages = new ArrayList<List<XMLCommandLineJob>>();
+	/**
+	 * Stages whose outputs were recovered from a checkpoint
+	 */
+	private List<XMLCommandLineJob> gCompleted = new ArrayList<XMLCommandLineJob>();
+	/**
+	 * Success of each stage, keyed on xml name
+	 */
+	private HashMap<String, String> gStatus = new HashMap<String, String>();
+	/**
+	 * The report, run at the end of the pipeline
+	 */
+	private XMLWorkflowReport gReport = null;
+
+	/**
+	 * Construct an XMLPipelineJob
+	 * @param pFileTracker FileTracker for the input file
+	 * @param pXmlCodes local xml job definitions, in the order they should run
+	 * @param pCheckpoint whether to store the outputs of each stage in HDFS
+	 */
+	public XMLPipelineJob(FileTracker pFileTracker, String[] pXmlCodes, boolean pCheckpoint) {
+		gFileTracker = pFileTracker;
+		gTempDir = gFileTracker.getLocalTempDir();
+		gLogFile = gTempDir+gFileTracker.getKeyFile()+".pipeline.log";
+		gCheckpoint = pCheckpoint;
+
+		//group the stages - a stage goes with the previous ones unless it needs
+		//one of their outputs (or would overwrite one)
+		List<XMLCommandLineJob> current = new ArrayList<XMLCommandLineJob>();
+		List<String> currentOutputs = new ArrayList<String>();
+		for(String xml:pXmlCodes) {
+			XMLCommandLineJob stage = new XMLCommandLineJob(gFileTracker.getKeyFile(), gTempDir, xml);
+			boolean dependent = false;
+			for(String file:stage.getInputFiles()) {
+				dependent |= currentOutputs.contains(file);
+			}
+			for(String file:stage.getOutputFiles()) {
+				dependent |= currentOutputs.contains(file);
+			}
+			if(dependent) {
+				gStages.add(current);
+				current = new ArrayList<XMLCommandLineJob>();
+				currentOutputs = new ArrayList<String>();
+			}
+			current.add(stage);
+			currentOutputs.addAll(Arrays.asList(stage.getOutputFiles()));
+		}
+		if(current.size()>0) gStages.add(current);
+	}
+
+	/**
+	 * Set up the job - recover any checkpointed stages
+	 */
+	public void setup() throws IOException {
+		if(!gCheckpoint) return;
+		for(List<XMLCommandLineJob> stages:gStages) {
+			for(XMLCommandLineJob stage:stages) {
+				boolean stored = true;
+				for(String file:stage.getOutputFiles()) {
+					stored &= gFileTracker.exists(new File(file).getName());
+				}
+				if(stored) {
+					System.out.println("Stage already completed: "+stage.getXMLName());
+					for(String file:stage.getOutputFiles()) {
+						gFileTracker.makeFileLocal(new File(file).getName());
+					}
+					gCompleted.add(stage);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run each set of stages in turn, then the report 
+	 */
+	public void run() throws IOException {
+
+		List<String> generatedFiles = new ArrayList<String>();
+
+		for(List<XMLCommandLineJob> stages:gStages) {
+
+			List<XMLCommandLineJob> toRun = new ArrayList<XMLCommandLineJob>();
+			for(XMLCommandLineJob stage:stages) {
+				for(String file:stage.getOutputFiles()) {
+					generatedFiles.add(new File(file).getName());
+				}
+				if(!gCompleted.contains(stage)) toRun.add(stage);
+			}
+			if(toRun.size()==0) continue;
+
+			ExecutorService pool = Executors.newFixedThreadPool(toRun.size());
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for(final XMLCommandLineJob stage:toRun) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return runStage(stage);
+					}
+				}));
+			}
+			pool.shutdown();
+
+			for(int i=0;i<toRun.size();i++) {
+				XMLCommandLineJob stage = toRun.get(i);
+				boolean success = false;
+				try {
+					success = results.get(i).get();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+				gStatus.put(stage.getXMLName(), ""+success);
+
+				if(gCheckpoint) {
+					List<String> localFiles = new ArrayList<String>();
+					List<String> trackerFiles = new ArrayList<String>();
+					for(String file:stage.getOutputFiles()) {
+						if(new File(file).exists()) {
+							localFiles.add(file);
+							trackerFiles.add(new File(file).getName());
+						}
+					}
+					gFileTracker.storeFiles(localFiles, trackerFiles);
+					List<String> promoted = new ArrayList<String>();
+					for(String file:stage.getPromotedFiles()) {
+						if(localFiles.contains(file)) promoted.add(new File(file).getName());
+					}
+					gFileTracker.promoteFiles(promoted);
+					//store whether this stage was a success, as for a separate XML job
+					JMSComms.sendMessage(gFileTracker.getHash(), "SUCCESS:"+success+":"+stage.getXMLName());
+				}
+			}
+		}
+
+		//collect the stage logs in to one
+		BufferedWriter log = new BufferedWriter(new FileWriter(gLogFile));
+		for(List<XMLCommandLineJob> stages:gStages) {
+			for(XMLCommandLineJob stage:stages) {
+				File stageLog = new File(stage.getLogFilename());
+				if(!stageLog.exists()) continue;
+				BufferedReader in = new BufferedReader(new FileReader(stageLog));
+				Tools.appendBufferToFile(stage.getXMLName(), in, log);
+				in.close();
+			}
+		}
+		log.close();
+
+		//the checkpointed stages' status is only available via JMS
+		gReport = new XMLWorkflowReport(gFileTracker, gStatus, generatedFiles, gCheckpoint);
+		gReport.setup();
+		gReport.run();
+	}
+
+	/**
+	 * Run a stage, if its input files are available
+	 * @param pStage stage to run
+	 * @return whether the stage was successful
+	 * @throws IOException file access error
+	 */
+	private boolean runStage(XMLCommandLineJob pStage) throws IOException {
+		for(String file:pStage.getInputFiles()) {
+			if(new File(file).exists()) continue;
+			//files not made by an earlier stage may be in the tracker (e.g. the key file)
+			String shortFile = new File(file).getName();
+			if(gFileTracker.exists(shortFile)) {
+				gFileTracker.makeFileLocal(shortFile);
+			} else {
+				System.out.println("Required input file does not exist: "+shortFile);
+				return false;
+			}
+		}
+		pStage.setup();
+		pStage.run();
+		pStage.cleanup();
+		return pStage.wasSuccessful();
+	}
+
+	/**
+	 * Was the pipeline successful (according to the report)?
+	 */
+	public boolean wasSuccessful() {
+		if(null==gReport) return false;
+		return gReport.wasSuccessful();
+	}
+
+	/**
+	 * Clean up after the pipeline - this deletes the FileTracker files
+	 */
+	public void cleanup() throws IOException {
+		if(null!=gReport) gReport.cleanup();
+	}
+
+	/**
+	 * Get the name of the log file
+	 * @return full path to the log file
+	 */
+	public String getLogFilename() {
+		return gLogFile;
+	}
+
+	/**
+	 * Get the full path of the output file(s)
+	 * @return full path to the report zip file
+	 */
+	public String[] getOutputFiles() {
+		if(null==gReport) return new String[0];
+		return gReport.getOutputFiles();
+	}
+
+	/**
+	 * Get a list of input files
+	 * @return null (inputs are recovered per stage)
+	 */
+	public String[] getInputFiles() {
+		return null;
+	}
+
+	public static JobType getJobType() {
+		return JobType.XMLPipelineJob;
+	}
+
+	public static String getShortJobType() {
+		return "XPL";
+	}
+
+}
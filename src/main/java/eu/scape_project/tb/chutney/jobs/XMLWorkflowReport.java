@@ -17,6 +17,7 @@
 package eu.scape_project.tb.chutney.jobs;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -54,6 +55,18 @@ public class XMLWorkflowReport implements ChutneyJob {
 	 * Name of the output file
 	 */
 	String gOutputFile = "";
+	/**
+	 * Status of jobs that was passed in directly rather than via JMS
+	 */
+	private HashMap<String, String> gStatus = new HashMap<String, String>();
+	/**
+	 * Files in the local temp dir, but not (yet) in the FileTracker, to add to the report
+	 */
+	private List<String> gLocalFiles = new ArrayList<String>();
+	/**
+	 * Whether to receive job status messages via JMS
+	 */
+	private boolean gReceiveStatus = true;
 	
 	/**
 	 * Set up an XMLWorkflowReport
@@ -64,6 +77,21 @@ public class XMLWorkflowReport implements ChutneyJob {
 		gTempDir = gFileTracker.getLocalTempDir();
 		gOutputFile = gTempDir+gFileTracker.getKeyFile()+".zip";
 	}
+
+	/**
+	 * Set up an XMLWorkflowReport for jobs that ran in this map (cf. XMLPipelineJob)
+	 * @param pFileTracker FileTracker to use
+	 * @param pStatus success of each job, keyed on xml name
+	 * @param pLocalFiles generated files in the local temp dir that are not in the FileTracker
+	 * @param pReceiveStatus whether to also receive job status messages via JMS
+	 */
+	public XMLWorkflowReport(FileTracker pFileTracker, HashMap<String, String> pStatus, 
+			List<String> pLocalFiles, boolean pReceiveStatus) {
+		this(pFileTracker);
+		gStatus = pStatus;
+		gLocalFiles = pLocalFiles;
+		gReceiveStatus = pReceiveStatus;
+	}
 	
 	/**
 	 * Setup the job
@@ -85,15 +113,16 @@ public class XMLWorkflowReport implements ChutneyJob {
 		
 		//receive all the data from JMS
 		String key = gFileTracker.getHash();
-		String message = JMSComms.receiveMessage(key);
+		String message = null;
+		if(gReceiveStatus) message = JMSComms.receiveMessage(key);
 		while(message!=null) {
-			if(message.startsWith("FILE:")) {
+			if(message.startsWith("FILES:")) {
 				
 				//do nothing with this message at the moment
 				//when we try and use this data zipGeneratedFiles complains of 
 				//duplicate entries
 				@SuppressWarnings("unused")
-				String file = message.substring(message.lastIndexOf("/")+1);
+				String[] files = message.substring("FILES:".length()).split(",");
 
 				//we could check that the file also exists in the filetracker here
 				//but assume consistency for now
@@ -109,19 +138,30 @@ public class XMLWorkflowReport implements ChutneyJob {
 		//TODO: this currently doesn't work
 		//JMSComms.deleteQueue(key);
 
+		//status passed in directly is more recent than any from JMS
+		status.putAll(gStatus);
+
 		//FIXME: make sure to copy all the files to the local temp dir?
 		//copy all the generated files in to generatedFiles
 		for(String file:gFileTracker.getFileList()) {
 			if(!generatedFiles.contains(file)) {
 				generatedFiles.add(file);
-				checksums.put(file, Tools.generateChecksum(gTempDir+file));
+				//from the manifest, unless the local copy has changed
+				checksums.put(file, gFileTracker.getLocalChecksum(file));
+			}
+		}
+		for(String file:gLocalFiles) {
+			if(!generatedFiles.contains(file)&new File(gTempDir+file).exists()) {
+				generatedFiles.add(file);
+				//calculated as the file is zipped, unless it is in the ChecksumCatalog
+				checksums.put(file, null);
 			}
 		}
 		
 		//now we have received all the data, we can produce a report and zip the files
 		String reportFile = gFileTracker.getKeyFile()+".report.xml";
 		gSuccess = generateShortReport(gTempDir+reportFile, generatedFiles, status);
-		checksums.put(reportFile, Tools.generateChecksum(gTempDir+reportFile));
+		checksums.put(reportFile, null);
 		generatedFiles.add(reportFile);
 		
 		Tools.zipGeneratedFiles(gSuccess, checksums, generatedFiles, gOutputFile, gTempDir);
@@ -8,3 +8,6 @@ hadoop jar $JAR -i TavernaHadoopWrapper-xml1/part-00000 -j xml4 -t XML -x ~/VMSh
 hadoop jar $JAR -i TavernaHadoopWrapper-xml1/part-00000 -j xml5 -t XML -x ~/VMSharedFolder/xmlcode/jpylyzer.xml
 hadoop jar $JAR -i TavernaHadoopWrapper-xml1/part-00000 -j xml6 -t XWR
 
+#or, equivalently, in one job:
+#X=~/VMSharedFolder/xmlcode
+#hadoop jar $JAR -i jisc1-short-list-err.txt -n xmlpipeline -t XPL -x $X/migrate.xml,$X/featureextract.xml,$X/featureextractjp2.xml,$X/featurecompare.xml,$X/jpylyzer.xml